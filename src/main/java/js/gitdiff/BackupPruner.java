@@ -0,0 +1,299 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import js.base.BaseObject;
+import js.file.Files;
+import js.json.JSMap;
+
+/**
+ * Limits the space used by the backups within a backup directory.
+ *
+ * The backups made of each file are recorded in a manifest. The most recent
+ * version of a file is always kept as is; older versions are compressed (with
+ * gzip), and are deleted once they exceed the maximum age or the number of
+ * versions kept per file, or (oldest first) while the backups exceed the size
+ * budget. Backups that aren't in the manifest (e.g. those made by earlier
+ * versions) are treated as older versions, but aren't counted as versions of
+ * any particular file.
+ *
+ * All of the work is done on a low priority background thread, holding a lock
+ * so that sessions reviewing the same repository don't interfere with each
+ * other
+ */
+public final class BackupPruner extends BaseObject {
+
+  public BackupPruner(Files files, File backupRootDir) {
+    mFiles = files;
+    mRootDir = backupRootDir;
+    mManifestFile = new File(backupRootDir, MANIFEST_NAME);
+  }
+
+  public BackupPruner withMaxAgeDays(int days) {
+    mMaxAgeMillis = days * 24L * 3600 * 1000;
+    return this;
+  }
+
+  public BackupPruner withMaxMegabytes(int megabytes) {
+    mMaxBytes = megabytes * 1024L * 1024;
+    return this;
+  }
+
+  public BackupPruner withMaxVersions(int versions) {
+    checkArgument(versions >= 1, "max versions must be at least 1");
+    mMaxVersions = versions;
+    return this;
+  }
+
+  /**
+   * Don't treat files (or directories) within the root directory whose names
+   * start with any of these prefixes as backups
+   */
+  public BackupPruner withReservedNames(String... prefixes) {
+    Collections.addAll(mReservedPrefixes, prefixes);
+    return this;
+  }
+
+  /**
+   * Record that a backup has been made of a file (within the repository, with
+   * a particular path)
+   */
+  public synchronized void recordBackup(String path, File backupFile) {
+    mPending.put(backupFile, path);
+  }
+
+  /**
+   * Add the backups recorded since the last call to the manifest, and prune
+   * the backups, on the background thread
+   */
+  public synchronized void start() {
+    if (mFiles.dryRun())
+      return;
+    Map<File, String> pending = mPending;
+    mPending = hashMap();
+    long time = System.currentTimeMillis();
+    if (mExecutor == null)
+      mExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "gitdiff-backup-pruner");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      });
+    mExecutor.submit(() -> {
+      try {
+        prune(pending, time);
+      } catch (Throwable t) {
+        pr("*** failed to prune backups:", t);
+      }
+    });
+  }
+
+  // ------------------------------------------------------------------
+
+  /**
+   * A backup file, and its place among the versions of a file
+   */
+  private static final class Version {
+
+    Version(String source, String relPath, long time, long size) {
+      this.source = source;
+      this.unknownSource = source.startsWith(UNKNOWN_SOURCE_PREFIX);
+      this.relPath = relPath;
+      this.time = time;
+      this.size = size;
+    }
+
+    final String source;
+    String relPath;
+    final long time;
+    long size;
+    final boolean unknownSource;
+    // Index within the file's versions (zero for the most recent)
+    int index;
+
+    /**
+     * Determine if this isn't known to be the most recent version of its file
+     */
+    boolean older() {
+      return unknownSource || index != 0;
+    }
+  }
+
+  private void prune(Map<File, String> pending, long time) throws IOException {
+    File lockFile = new File(mManifestFile.getPath() + ".lock");
+    try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+      checkState(lock.isValid());
+      JSMap manifest = JSMap.fromFileIfExists(mManifestFile);
+      for (Map.Entry<File, String> ent : pending.entrySet())
+        manifest.createMapIfMissing(ent.getValue()).put(relativePath(ent.getKey()), time);
+
+      List<Version> versions = readVersions(manifest);
+      Set<Version> deleted = hashSet();
+      long now = System.currentTimeMillis();
+      long totalSize = 0;
+      for (Version v : versions) {
+        if (v.older() && (v.index >= mMaxVersions || now - v.time > mMaxAgeMillis)) {
+          delete(v);
+          deleted.add(v);
+          continue;
+        }
+        if (v.older() && !v.relPath.endsWith(COMPRESSED_SUFFIX))
+          compress(v);
+        totalSize += v.size;
+      }
+
+      // Delete the oldest of the older versions until the size is within budget
+      List<Version> candidates = arrayList();
+      for (Version v : versions)
+        if (v.older() && !deleted.contains(v))
+          candidates.add(v);
+      candidates.sort((a, b) -> Long.compare(a.time, b.time));
+      for (Version v : candidates) {
+        if (totalSize <= mMaxBytes)
+          break;
+        delete(v);
+        deleted.add(v);
+        totalSize -= v.size;
+      }
+
+      JSMap result = new JSMap();
+      for (Version v : versions)
+        if (!deleted.contains(v))
+          result.createMapIfMissing(v.source).put(v.relPath, v.time);
+      File tempFile = new File(mManifestFile.getPath() + ".tmp");
+      mFiles.writePretty(tempFile, result);
+      java.nio.file.Files.move(tempFile.toPath(), mManifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      log("backups:", versions.size() - deleted.size(), "versions,", totalSize, "bytes;", deleted.size(),
+          "deleted");
+    }
+  }
+
+  /**
+   * Build the list of versions from the manifest and the backup files that
+   * exist, omitting those whose files have disappeared
+   */
+  private List<Version> readVersions(JSMap manifest) {
+    Set<String> existing = hashSet();
+    listFiles(mRootDir, "", existing);
+
+    List<Version> versions = arrayList();
+    for (String source : manifest.keySet()) {
+      JSMap m = manifest.getMap(source);
+      List<Version> fileVersions = arrayList();
+      for (String relPath : m.keySet()) {
+        if (!existing.remove(relPath))
+          continue;
+        fileVersions.add(
+            new Version(source, relPath, m.getLong(relPath), new File(mRootDir, relPath).length()));
+      }
+      fileVersions.sort((a, b) -> Long.compare(b.time, a.time));
+      for (int i = 0; i < fileVersions.size(); i++)
+        fileVersions.get(i).index = i;
+      versions.addAll(fileVersions);
+    }
+    for (String relPath : existing) {
+      File file = new File(mRootDir, relPath);
+      versions.add(new Version(UNKNOWN_SOURCE_PREFIX + relPath, relPath, file.lastModified(), file.length()));
+    }
+    return versions;
+  }
+
+  private void listFiles(File dir, String prefix, Set<String> relPaths) {
+    File[] children = dir.listFiles();
+    if (children == null)
+      return;
+    for (File f : children) {
+      if (prefix.isEmpty() && isReserved(f.getName()))
+        continue;
+      String relPath = prefix + f.getName();
+      if (f.isDirectory())
+        listFiles(f, relPath + "/", relPaths);
+      else
+        relPaths.add(relPath);
+    }
+  }
+
+  private boolean isReserved(String name) {
+    if (name.startsWith(MANIFEST_NAME))
+      return true;
+    for (String prefix : mReservedPrefixes)
+      if (name.startsWith(prefix))
+        return true;
+    return false;
+  }
+
+  private String relativePath(File backupFile) {
+    String root = mRootDir.getAbsolutePath() + File.separator;
+    String path = backupFile.getAbsolutePath();
+    checkArgument(path.startsWith(root), "backup isn't within root directory:", backupFile);
+    return path.substring(root.length()).replace(File.separatorChar, '/');
+  }
+
+  private void delete(Version v) {
+    log("deleting backup:", v.relPath);
+    new File(mRootDir, v.relPath).delete();
+  }
+
+  /**
+   * Replace a version's file with a compressed copy
+   */
+  private void compress(Version v) throws IOException {
+    File file = new File(mRootDir, v.relPath);
+    String relPath = v.relPath + COMPRESSED_SUFFIX;
+    File target = new File(mRootDir, relPath);
+    File tempFile = new File(target.getPath() + ".tmp");
+    try (InputStream input = new BufferedInputStream(new FileInputStream(file));
+        OutputStream output = new GZIPOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      byte[] buffer = new byte[1 << 14];
+      int count;
+      while ((count = input.read(buffer)) >= 0)
+        output.write(buffer, 0, count);
+    }
+    java.nio.file.Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    file.delete();
+    v.relPath = relPath;
+    v.size = target.length();
+  }
+
+  private static final String MANIFEST_NAME = "backups.json";
+  private static final String COMPRESSED_SUFFIX = ".gz";
+
+  // Backups that weren't in the manifest are recorded as the only versions of
+  // distinct (unknown) files
+  private static final String UNKNOWN_SOURCE_PREFIX = "?";
+
+  private final Files mFiles;
+  private final File mRootDir;
+  private final File mManifestFile;
+  private long mMaxAgeMillis = Long.MAX_VALUE;
+  private long mMaxBytes = Long.MAX_VALUE;
+  private int mMaxVersions = Integer.MAX_VALUE;
+  private final List<String> mReservedPrefixes = new ArrayList<>();
+  private Map<File, String> mPending = hashMap();
+  private ExecutorService mExecutor;
+}
@@ -3,7 +3,10 @@ package js.gitdiff;
 import static js.base.Tools.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.jline.terminal.Attributes;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 import org.jline.utils.NonBlockingReader;
@@ -20,9 +23,37 @@ public final class BaseTerminal {
     }
   }
 
+  /**
+   * Determine if there are keypresses that have been typed but not yet read
+   */
+  public static boolean hasBufferedInput() {
+    try {
+      return openTerminal().ready();
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+  }
+
+  /**
+   * Discard any keypresses that have been typed but not yet read
+   */
+  public static void discardBufferedInput() {
+    try {
+      NonBlockingReader reader = openTerminal();
+      while (reader.ready())
+        reader.read();
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+  }
+
+  /**
+   * Get the terminal's width; this is cached, and updated when the terminal is
+   * resized
+   */
   public static int terminalWidth() {
     openTerminal();
-    int width = sTerminal.getWidth();
+    int width = sWidth;
     if (width <= 0) {
       alert("!terminalWidth is undefined; are we running in Eclipse?");
       width = 120;
@@ -30,10 +61,116 @@ public final class BaseTerminal {
     return width;
   }
 
+  public static int terminalHeight() {
+    openTerminal();
+    int height = sHeight;
+    if (height <= 0) {
+      alert("!terminalHeight is undefined; are we running in Eclipse?");
+      height = 40;
+    }
+    return height;
+  }
+
+  /**
+   * Get a value that changes whenever the terminal is resized
+   */
+  public static int sizeVersion() {
+    openTerminal();
+    return sSizeVersion;
+  }
+
+  /**
+   * Determine if the terminal lacks cursor positioning (e.g., within an IDE's
+   * console)
+   */
+  public static boolean isDumb() {
+    openTerminal();
+    return Terminal.TYPE_DUMB.equals(sTerminal.getType())
+        || Terminal.TYPE_DUMB_COLOR.equals(sTerminal.getType()) || sWidth <= 0;
+  }
+
+  static Terminal terminal() {
+    openTerminal();
+    return sTerminal;
+  }
+
+  private static void readSize() {
+    sWidth = sTerminal.getWidth();
+    sHeight = sTerminal.getHeight();
+    sSizeVersion++;
+  }
+
+  /**
+   * Run an interactive program (e.g. an editor) that uses the terminal;
+   * while it runs, the terminal is restored to the mode it was in before
+   * raw mode was entered, and keypresses aren't read
+   */
+  public static void runInteractive(Runnable program) {
+    openTerminal();
+    try {
+      sTerminal.pause(true);
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
+    }
+    Attributes rawAttributes = sTerminal.getAttributes();
+    sTerminal.setAttributes(sOriginalAttributes);
+    try {
+      program.run();
+    } finally {
+      sTerminal.setAttributes(rawAttributes);
+      sTerminal.resume();
+    }
+  }
+
   public static String readCharAsString() {
     return Character.toString((char) BaseTerminal.readCharacter());
   }
 
+  /**
+   * Register an action to be run when the program exits (even if it is
+   * interrupted), before the terminal is restored
+   */
+  public static void addShutdownAction(Runnable action) {
+    synchronized (sShutdownActions) {
+      sShutdownActions.add(action);
+    }
+    addShutdownHook();
+  }
+
+  /**
+   * Unregister an action added by addShutdownAction()
+   */
+  public static void removeShutdownAction(Runnable action) {
+    synchronized (sShutdownActions) {
+      sShutdownActions.remove(action);
+    }
+  }
+
+  private static synchronized void addShutdownHook() {
+    if (sShutdownHookAdded)
+      return;
+    sShutdownHookAdded = true;
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        List<Runnable> actions;
+        synchronized (sShutdownActions) {
+          actions = new ArrayList<>(sShutdownActions);
+        }
+        for (Runnable action : actions) {
+          try {
+            action.run();
+          } catch (Throwable t) {
+            pr("Caught:", INDENT, t);
+          }
+        }
+        shutdown();
+      };
+    });
+  }
+
+  private static final List<Runnable> sShutdownActions = new ArrayList<>();
+  private static boolean sShutdownHookAdded;
+
   public static void shutdown() {
     if (sReader == null)
       return;
@@ -67,17 +204,15 @@ public final class BaseTerminal {
     if (sReader != null)
       return sReader;
     try {
-      Runtime.getRuntime().addShutdownHook(new Thread() {
-        public void run() {
-          shutdown();
-        };
-      });
+      addShutdownHook();
       Terminal terminal = TerminalBuilder.builder().jna(true).system(true).build();
 
       // raw mode means we get keypresses rather than line buffered input
-      terminal.enterRawMode();
+      sOriginalAttributes = terminal.enterRawMode();
       sTerminal = terminal;
       sReader = terminal.reader();
+      readSize();
+      terminal.handle(Terminal.Signal.WINCH, signal -> readSize());
 
       return sReader;
     } catch (IOException e) {
@@ -87,5 +222,9 @@ public final class BaseTerminal {
 
   private static NonBlockingReader sReader;
   private static Terminal sTerminal;
+  private static Attributes sOriginalAttributes;
+  private static volatile int sWidth;
+  private static volatile int sHeight;
+  private static volatile int sSizeVersion;
 
 }
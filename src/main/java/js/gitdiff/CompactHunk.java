@@ -0,0 +1,128 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import gitutil.gen.Hunk;
+
+/**
+ * A hunk whose lines are stored within a shared LineBuffer, or within a
+ * SpillFile (in which case they are loaded when needed). The header fields
+ * (file name, ranges, missing newline flags) are held in a Hunk with no lines
+ */
+public final class CompactHunk {
+
+  CompactHunk(Hunk header, LineBuffer buffer, int firstLine, int lineCount) {
+    checkArgument(header.lines().isEmpty(), "header has lines");
+    mHeader = header;
+    mBuffer = buffer;
+    mFirstLine = firstLine;
+    mLineCount = lineCount;
+    mSpill = null;
+    mSpillPosition = 0;
+    mSpillLength = 0;
+  }
+
+  CompactHunk(Hunk header, SpillFile spill, long spillPosition, int spillLength, int lineCount) {
+    mHeader = header;
+    mBuffer = null;
+    mFirstLine = 0;
+    mLineCount = lineCount;
+    mSpill = spill;
+    mSpillPosition = spillPosition;
+    mSpillLength = spillLength;
+  }
+
+  /**
+   * Get the hunk's header fields (its lines() will be empty)
+   */
+  public Hunk header() {
+    return mHeader;
+  }
+
+  public int lineCount() {
+    return mLineCount;
+  }
+
+  public String line(int index) {
+    return buffer().line(lineIndex(index));
+  }
+
+  /**
+   * Get the ' ', '+' or '-' marker that starts a line, without decoding it
+   */
+  public char marker(int index) {
+    return (char) buffer().firstByte(lineIndex(index));
+  }
+
+  /**
+   * Get the length of a line, in bytes
+   */
+  public int lineLength(int index) {
+    return buffer().lineLength(lineIndex(index));
+  }
+
+  /**
+   * Copy a line's (UTF-8) bytes to the start of an array
+   */
+  public void copyLine(int index, byte[] destination) {
+    buffer().copyLine(lineIndex(index), destination);
+  }
+
+  /**
+   * Get a view of the lines, in which each line is decoded as it is accessed
+   */
+  public List<String> lines() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return line(index);
+      }
+
+      @Override
+      public int size() {
+        return mLineCount;
+      }
+    };
+  }
+
+  /**
+   * Construct a Hunk that includes all of the (decoded) lines
+   */
+  public Hunk toHunk() {
+    Hunk.Builder b = mHeader.toBuilder();
+    List<String> lines = b.lines();
+    for (int i = 0; i < mLineCount; i++)
+      lines.add(line(i));
+    return b.build();
+  }
+
+  long spillPosition() {
+    return mSpillPosition;
+  }
+
+  int spillLength() {
+    return mSpillLength;
+  }
+
+  private LineBuffer buffer() {
+    if (mSpill != null)
+      return mSpill.load(this);
+    return mBuffer;
+  }
+
+  private int lineIndex(int index) {
+    checkArgument(index >= 0 && index < mLineCount, "line index out of range:", index);
+    return mFirstLine + index;
+  }
+
+  private final Hunk mHeader;
+  private final LineBuffer mBuffer;
+  private final int mFirstLine;
+  private final int mLineCount;
+  private final SpillFile mSpill;
+  private final long mSpillPosition;
+  private final int mSpillLength;
+}
@@ -0,0 +1,252 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import js.base.BaseObject;
+import js.base.SystemCall;
+
+/**
+ * Classifies the files within a diff before any hunks are parsed, using 'git
+ * diff --numstat' and the repository's .gitattributes. Generated, vendored and
+ * oversized files are 'collapsed', so their hunks are only parsed if the user
+ * asks for them
+ */
+public final class DiffFilter extends BaseObject {
+
+  public DiffFilter withMaxLines(int maxLines) {
+    mMaxLines = maxLines;
+    return this;
+  }
+
+  public DiffFilter withMaxBytes(long maxBytes) {
+    mMaxBytes = maxBytes;
+    return this;
+  }
+
+  /**
+   * Specify paths that are never to be collapsed (e.g. those the user has
+   * already expanded)
+   */
+  public DiffFilter withExpandedPaths(Set<String> paths) {
+    mExpandedPaths = paths;
+    return this;
+  }
+
+  /**
+   * A file whose hunks have not been parsed
+   */
+  public static final class CollapsedFile {
+
+    CollapsedFile(String path, int added, int deleted, String reason) {
+      mPath = path;
+      mAdded = added;
+      mDeleted = deleted;
+      mReason = reason;
+    }
+
+    public String path() {
+      return mPath;
+    }
+
+    /**
+     * Number of lines added, or -1 if binary
+     */
+    public int added() {
+      return mAdded;
+    }
+
+    /**
+     * Number of lines deleted, or -1 if binary
+     */
+    public int deleted() {
+      return mDeleted;
+    }
+
+    public String reason() {
+      return mReason;
+    }
+
+    @Override
+    public String toString() {
+      if (mAdded < 0)
+        return mPath + " (binary, " + mReason + ")";
+      return mPath + " (+" + mAdded + " -" + mDeleted + ", " + mReason + ")";
+    }
+
+    private final String mPath;
+    private final int mAdded;
+    private final int mDeleted;
+    private final String mReason;
+  }
+
+  /**
+   * Determine which files within the diff against a commit are to be collapsed
+   */
+  public List<CollapsedFile> classify(File repoRoot, String commitName) {
+    return classify(repoRoot, commitName, null);
+  }
+
+  /**
+   * Determine which files within a subtree (e.g. ":(top)src/server"; null for
+   * the entire tree) of the diff against a commit are to be collapsed
+   */
+  public List<CollapsedFile> classify(File repoRoot, String commitName, String pathspec) {
+    List<NumStat> stats = readNumStats(repoRoot, commitName, pathspec, verbose());
+    Map<String, String> attrReasons = readAttributeReasons(repoRoot, stats);
+
+    List<CollapsedFile> result = arrayList();
+    for (NumStat st : stats) {
+      if (mExpandedPaths != null && mExpandedPaths.contains(st.path))
+        continue;
+      String reason = attrReasons.get(st.path);
+      if (reason == null)
+        reason = patternReason(st.path);
+      if (reason == null && mMaxLines > 0 && st.added + st.deleted > mMaxLines)
+        reason = "over " + mMaxLines + " lines";
+      if (reason == null && mMaxBytes > 0) {
+        File f = new File(repoRoot, st.path);
+        if (f.length() > mMaxBytes)
+          reason = "over " + mMaxBytes + " bytes";
+      }
+      if (reason != null)
+        result.add(new CollapsedFile(st.path, st.added, st.deleted, reason));
+    }
+    log("collapsed files:", result.size(), "of", stats.size());
+    return result;
+  }
+
+  // ------------------------------------------------------------------
+  // Reading 'git diff --numstat' output
+  // ------------------------------------------------------------------
+
+  static final class NumStat {
+    String path;
+    // These are -1 for binary files
+    int added;
+    int deleted;
+  }
+
+  static List<NumStat> readNumStats(File repoRoot, String commitName, String pathspec, boolean verbose) {
+    SystemCall s = new SystemCall().withVerbose(verbose);
+    s.arg("git", "-C", repoRoot, "diff", "--numstat", "-z");
+    if (!nullOrEmpty(commitName))
+      s.arg(commitName);
+    if (pathspec != null)
+      s.arg("--", pathspec);
+    String out = s.assertSuccess().systemOut();
+
+    // Each record is "<added>\t<deleted>\t<path>\0", or, for renames and copies,
+    // "<added>\t<deleted>\t\0<old path>\0<new path>\0"
+    //
+    List<NumStat> stats = arrayList();
+    int cursor = 0;
+    while (cursor < out.length()) {
+      int tab1 = out.indexOf('\t', cursor);
+      int tab2 = out.indexOf('\t', tab1 + 1);
+      checkState(tab1 > 0 && tab2 > tab1, "Malformed numstat:", quote(out.substring(cursor)));
+      NumStat st = new NumStat();
+      st.added = parseCount(out.substring(cursor, tab1));
+      st.deleted = parseCount(out.substring(tab1 + 1, tab2));
+      cursor = tab2 + 1;
+      if (out.charAt(cursor) == '\0') {
+        // Skip the old path
+        cursor = out.indexOf('\0', cursor + 1) + 1;
+      }
+      int end = out.indexOf('\0', cursor);
+      checkState(end >= cursor, "Malformed numstat; missing terminator");
+      st.path = out.substring(cursor, end);
+      cursor = end + 1;
+      stats.add(st);
+    }
+    return stats;
+  }
+
+  private static int parseCount(String text) {
+    // Binary files have '-' for their counts
+    if (text.equals("-"))
+      return -1;
+    return Integer.parseInt(text);
+  }
+
+  // ------------------------------------------------------------------
+  // Reading .gitattributes
+  // ------------------------------------------------------------------
+
+  private static final int ATTR_BATCH_SIZE = 200;
+
+  private Map<String, String> readAttributeReasons(File repoRoot, List<NumStat> stats) {
+    Map<String, String> reasons = hashMap();
+    for (int start = 0; start < stats.size(); start += ATTR_BATCH_SIZE) {
+      SystemCall s = new SystemCall().withVerbose(verbose());
+      s.arg("git", "-C", repoRoot, "check-attr", "-z", "linguist-generated", "linguist-vendored", "diff", "--");
+      int end = Math.min(stats.size(), start + ATTR_BATCH_SIZE);
+      for (int i = start; i < end; i++)
+        s.arg(stats.get(i).path);
+      String out = s.assertSuccess().systemOut();
+
+      // Each record is "<path>\0<attribute>\0<value>\0"
+      List<String> fields = split(out, '\0');
+      for (int i = 0; i + 2 < fields.size(); i += 3) {
+        String path = fields.get(i);
+        String attr = fields.get(i + 1);
+        String value = fields.get(i + 2);
+        String reason = null;
+        switch (attr) {
+        case "linguist-generated":
+          if (isSet(value))
+            reason = "generated";
+          break;
+        case "linguist-vendored":
+          if (isSet(value))
+            reason = "vendored";
+          break;
+        case "diff":
+          if (value.equals("unset"))
+            reason = "-diff";
+          break;
+        }
+        if (reason != null && !reasons.containsKey(path))
+          reasons.put(path, reason);
+      }
+    }
+    return reasons;
+  }
+
+  private static boolean isSet(String attrValue) {
+    return attrValue.equals("set") || attrValue.equals("true");
+  }
+
+  // ------------------------------------------------------------------
+  // Built-in patterns
+  // ------------------------------------------------------------------
+
+  private static final Set<String> LOCKFILE_NAMES = Set.of("package-lock.json", "yarn.lock",
+      "pnpm-lock.yaml", "Cargo.lock", "Gemfile.lock", "poetry.lock", "composer.lock", "go.sum");
+
+  private static final List<String> GENERATED_SUFFIXES = List.of(".min.js", ".min.css", ".map");
+
+  private static final List<String> VENDORED_DIRECTORIES = List.of("vendor/", "node_modules/",
+      "third_party/");
+
+  private static String patternReason(String path) {
+    String name = new File(path).getName();
+    if (LOCKFILE_NAMES.contains(name))
+      return "lockfile";
+    for (String suffix : GENERATED_SUFFIXES)
+      if (name.endsWith(suffix))
+        return "generated";
+    for (String dir : VENDORED_DIRECTORIES)
+      if (path.startsWith(dir) || path.contains("/" + dir))
+        return "vendored";
+    return null;
+  }
+
+  private int mMaxLines;
+  private long mMaxBytes;
+  private Set<String> mExpandedPaths;
+}
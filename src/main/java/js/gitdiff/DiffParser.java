@@ -0,0 +1,587 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import js.base.BaseObject;
+import js.file.Files;
+import gitutil.gen.FileEntry;
+import gitutil.gen.FileState;
+import gitutil.gen.Hunk;
+
+/**
+ * Parses the output of 'git diff' directly from its UTF-8 bytes. Lines are
+ * scanned within a reusable buffer; hunk lines are copied straight into a
+ * LineBuffer, so no objects are created per line
+ */
+public final class DiffParser extends BaseObject {
+
+  public DiffParser(InputStream input) {
+    mInput = input;
+  }
+
+  /**
+   * Specify the LineBuffer to hold the lines of hunks that are retained, and a
+   * scratch buffer for those that aren't
+   */
+  public DiffParser withLineBuffers(LineBuffer lines, LineBuffer scratchLines) {
+    mLines = lines;
+    mScratchLines = scratchLines;
+    return this;
+  }
+
+  /**
+   * Specify paths of files whose hunks are to be skipped
+   */
+  public DiffParser withCollapsedPaths(Set<String> paths) {
+    mCollapsedPaths = paths;
+    return this;
+  }
+
+  public void parse(GitDiff.Listener listener) {
+    if (mLines == null)
+      withLineBuffers(new LineBuffer(), new LineBuffer());
+    mVerbose = verbose();
+    nextLine();
+    while (mHasLine) {
+      List<CompactHunk> hunks = arrayList();
+      readGitDiffHeader();
+      FileEntry.Builder fileEntry = FileEntry.newBuilder();
+      readExtendedHeader(fileEntry);
+      if (!mHasLine || startsWith(DIFF_GIT)) {
+        // (an entry without hunks, e.g. a change of mode, or a rename without changes)
+        if (isCollapsed(fileEntry))
+          continue;
+        listener.fileHeader(fileEntry.build());
+      } else if (startsWith(BINARY)) {
+        processBinaryFile(fileEntry);
+        if (isCollapsed(fileEntry))
+          continue;
+        listener.fileHeader(fileEntry.build());
+      } else {
+        readUnifiedHeader(fileEntry);
+        if (isCollapsed(fileEntry)) {
+          skipHunks();
+          continue;
+        }
+        listener.fileHeader(fileEntry.build());
+        readHunks(fileEntry, listener, hunks);
+      }
+      listener.fileEntry(fileEntry.build(), hunks);
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Scanning lines
+  // ------------------------------------------------------------------
+
+  /**
+   * Advance to the next line; set mHasLine false if there are no more. The line
+   * occupies mBuffer[mStart...mEnd), excluding the '\n'
+   */
+  private void nextLine() {
+    if (mHasLine) {
+      mStart = mEnd + 1;
+      mLineNumber++;
+    }
+    int scan = mStart;
+    while (true) {
+      for (; scan < mLimit; scan++) {
+        if (mBuffer[scan] == '\n') {
+          mEnd = scan;
+          mHasLine = true;
+          return;
+        }
+      }
+      if (mEof) {
+        // The final line may lack a linefeed
+        mEnd = mLimit;
+        mHasLine = mStart < mLimit;
+        return;
+      }
+      scan -= mStart;
+      fillBuffer();
+    }
+  }
+
+  /**
+   * Discard the bytes before the current line, and read more (growing the
+   * buffer if the current line fills it)
+   */
+  private void fillBuffer() {
+    int retained = mLimit - mStart;
+    if (retained == mBuffer.length) {
+      byte[] larger = new byte[mBuffer.length * 2];
+      System.arraycopy(mBuffer, mStart, larger, 0, retained);
+      mBuffer = larger;
+    } else if (mStart != 0)
+      System.arraycopy(mBuffer, mStart, mBuffer, 0, retained);
+    mStart = 0;
+    mLimit = retained;
+    try {
+      int count = mInput.read(mBuffer, mLimit, mBuffer.length - mLimit);
+      if (count < 0)
+        mEof = true;
+      else
+        mLimit += count;
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+  }
+
+  private int lineLength() {
+    return mEnd - mStart;
+  }
+
+  private boolean startsWith(byte[] prefix) {
+    if (lineLength() < prefix.length)
+      return false;
+    for (int i = 0; i < prefix.length; i++)
+      if (mBuffer[mStart + i] != prefix[i])
+        return false;
+    return true;
+  }
+
+  private boolean lineEquals(byte[] text) {
+    return lineLength() == text.length && startsWith(text);
+  }
+
+  private String lineString(int offset) {
+    return new String(mBuffer, mStart + offset, lineLength() - offset, StandardCharsets.UTF_8);
+  }
+
+  private void assertHasLine() {
+    checkState(mHasLine, "Unexpected end of file");
+  }
+
+  private RuntimeException parseError(String message) {
+    return badArg(message, "at line", mLineNumber + 1, quote(mHasLine ? lineString(0) : "<EOF>"));
+  }
+
+  private void read(byte[] prefix) {
+    assertHasLine();
+    if (!startsWith(prefix))
+      throw parseError("Expected " + quote(new String(prefix, StandardCharsets.UTF_8)));
+  }
+
+  // ------------------------------------------------------------------
+  // Headers
+  // ------------------------------------------------------------------
+
+  private void readGitDiffHeader() {
+    read(DIFF_GIT);
+    if (mVerbose)
+      log(lineString(0));
+    mHeaderPath = null;
+    if (mCollapsedPaths != null && !mCollapsedPaths.isEmpty())
+      mHeaderPath = headerPath();
+    nextLine();
+  }
+
+  /**
+   * Get the path named by the 'diff --git' header, if its two paths are the
+   * same (as they are unless the file was renamed or copied); otherwise, null.
+   * An entry whose only change is to its mode has no other source of its path
+   */
+  private String headerPath() {
+    int start = mStart + DIFF_GIT.length + 1;
+    int length = mEnd - start;
+    // 'diff --git a/<path> b/<path>', where each side may be quoted
+    int q = length > 0 && mBuffer[start] == '"' ? 1 : 0;
+    int n = (length - 1) / 2 - 2 - 2 * q;
+    int sideLength = n + 2 + 2 * q;
+    if (n <= 0 || length != 2 * sideLength + 1)
+      return null;
+    int second = start + sideLength + 1;
+    if (mBuffer[start + q] != 'a' || mBuffer[start + q + 1] != '/' || mBuffer[second - 1] != ' '
+        || mBuffer[second + q] != 'b' || mBuffer[second + q + 1] != '/')
+      return null;
+    for (int i = 0; i < n; i++)
+      if (mBuffer[start + q + 2 + i] != mBuffer[second + q + 2 + i])
+        return null;
+    if (q == 0)
+      return new String(mBuffer, start + 2, n, StandardCharsets.UTF_8);
+    if (mBuffer[second] != '"' || mBuffer[second - 2] != '"')
+      return null;
+    return readPath(start, start + sideLength).substring(2);
+  }
+
+  private void readExtendedHeader(FileEntry.Builder fileEntry) {
+    fileEntry.state(FileState.MODIFIED);
+
+    // see https://git-scm.com/docs/git-diff
+
+    for (; mHasLine; nextLine()) {
+      if (startsWith(INDEX) || startsWith(SIMILARITY_INDEX) || startsWith(DISSIMILARITY_INDEX))
+        continue;
+      if (startsWith(OLD_MODE)) {
+        fileEntry.oldMode(lineString(OLD_MODE.length));
+        continue;
+      }
+      if (startsWith(NEW_MODE)) {
+        fileEntry.mode(lineString(NEW_MODE.length));
+        continue;
+      }
+      if (startsWith(DELETED_FILE_MODE)) {
+        fileEntry.mode(lineString(DELETED_FILE_MODE.length));
+        fileEntry.state(FileState.DELETED);
+        continue;
+      }
+      if (startsWith(NEW_FILE_MODE)) {
+        fileEntry.mode(lineString(NEW_FILE_MODE.length));
+        fileEntry.state(FileState.ADDED);
+        continue;
+      }
+      if (startsWith(COPY_FROM)) {
+        fileEntry.origPath(readPath(mStart + COPY_FROM.length, mEnd));
+        continue;
+      }
+      if (startsWith(COPY_TO)) {
+        fileEntry.path(readPath(mStart + COPY_TO.length, mEnd));
+        continue;
+      }
+      if (startsWith(RENAME_FROM)) {
+        fileEntry.state(FileState.RENAMED);
+        fileEntry.origPath(readPath(mStart + RENAME_FROM.length, mEnd));
+        continue;
+      }
+      if (startsWith(RENAME_TO)) {
+        fileEntry.state(FileState.RENAMED);
+        fileEntry.path(readPath(mStart + RENAME_TO.length, mEnd));
+        continue;
+      }
+      break;
+    }
+  }
+
+  private void readUnifiedHeader(FileEntry.Builder fileEntry) {
+    read(MINUS_HEADER);
+    String pathA = readPath(mStart + MINUS_HEADER.length, trimTab(mEnd));
+    nextLine();
+    read(PLUS_HEADER);
+    String pathB = readPath(mStart + PLUS_HEADER.length, trimTab(mEnd));
+    nextLine();
+    setPaths(fileEntry, pathA, pathB);
+  }
+
+  private void processBinaryFile(FileEntry.Builder fileEntry) {
+    read(BINARY);
+    if (!endsWith(DIFFER))
+      throw parseError("Expected " + quote(" differ"));
+    int start = mStart + BINARY.length;
+    int end = mEnd - DIFFER.length;
+
+    // Find the ' and ' separating the two paths; if the first is quoted, it follows the closing quote
+    int separator;
+    if (mBuffer[start] == '"')
+      separator = closingQuote(start) + 1;
+    else
+      separator = findSeparator(start, end);
+    if (separator < 0 || !regionMatches(separator, AND))
+      throw parseError("Expected " + quote(" and "));
+    String pathA = readPath(start, separator);
+    String pathB = readPath(separator + AND.length, end);
+    nextLine();
+    setPaths(fileEntry, pathA, pathB);
+  }
+
+  private void setPaths(FileEntry.Builder fileEntry, String pathA, String pathB) {
+    if (fileEntry.state() != FileState.ADDED) {
+      checkArgument(pathA.startsWith("a/"));
+      fileEntry.origPath(pathA.substring(2));
+    }
+    if (fileEntry.state() != FileState.DELETED) {
+      checkArgument(pathB.startsWith("b/"));
+      fileEntry.path(pathB.substring(2));
+    }
+    if (mVerbose)
+      log("file entry:", INDENT, fileEntry);
+  }
+
+  private boolean endsWith(byte[] suffix) {
+    return lineLength() >= suffix.length && regionMatches(mEnd - suffix.length, suffix);
+  }
+
+  private boolean regionMatches(int offset, byte[] text) {
+    if (offset + text.length > mEnd)
+      return false;
+    for (int i = 0; i < text.length; i++)
+      if (mBuffer[offset + i] != text[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Find the ' and ' that precedes the second (unquoted) path in a 'Binary
+   * files' line
+   */
+  private int findSeparator(int start, int end) {
+    int result = -1;
+    for (int i = start; i + AND.length <= end; i++) {
+      if (!regionMatches(i, AND))
+        continue;
+      result = i;
+      int next = i + AND.length;
+      if (regionMatches(next, B_PREFIX) || regionMatches(next, DEV_NULL) || mBuffer[next] == '"')
+        break;
+    }
+    return result;
+  }
+
+  /**
+   * git appends a tab to the paths in '---' and '+++' lines if they contain
+   * spaces
+   */
+  private int trimTab(int end) {
+    if (end > mStart && mBuffer[end - 1] == '\t')
+      end--;
+    return end;
+  }
+
+  private int closingQuote(int openQuote) {
+    for (int i = openQuote + 1; i < mEnd; i++) {
+      byte b = mBuffer[i];
+      if (b == '\\')
+        i++;
+      else if (b == '"')
+        return i;
+    }
+    throw parseError("Unterminated quoted path");
+  }
+
+  /**
+   * Read a path from a region of the line; if it is quoted, interpret its C-style
+   * escapes
+   */
+  private String readPath(int start, int end) {
+    if (start == end || mBuffer[start] != '"')
+      return new String(mBuffer, start, end - start, StandardCharsets.UTF_8);
+
+    int close = closingQuote(start);
+    if (close != end - 1)
+      throw parseError("Unexpected text following quoted path");
+    ByteArrayOutputStream out = new ByteArrayOutputStream(end - start);
+    for (int i = start + 1; i < close; i++) {
+      byte b = mBuffer[i];
+      if (b != '\\') {
+        out.write(b);
+        continue;
+      }
+      i++;
+      byte c = mBuffer[i];
+      switch (c) {
+      case 'a':
+        out.write(7);
+        break;
+      case 'b':
+        out.write('\b');
+        break;
+      case 't':
+        out.write('\t');
+        break;
+      case 'n':
+        out.write('\n');
+        break;
+      case 'v':
+        out.write(11);
+        break;
+      case 'f':
+        out.write('\f');
+        break;
+      case 'r':
+        out.write('\r');
+        break;
+      case '"':
+      case '\\':
+        out.write(c);
+        break;
+      default:
+        if (c < '0' || c > '7' || i + 2 >= close)
+          throw parseError("Unsupported escape in quoted path");
+        out.write(((c - '0') << 6) | ((mBuffer[i + 1] - '0') << 3) | (mBuffer[i + 2] - '0'));
+        i += 2;
+        break;
+      }
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  // ------------------------------------------------------------------
+  // Hunks
+  // ------------------------------------------------------------------
+
+  private boolean isCollapsed(FileEntry fileEntry) {
+    if (mCollapsedPaths == null || mCollapsedPaths.isEmpty())
+      return false;
+    String path = fileEntry.state() == FileState.DELETED ? fileEntry.origPath() : fileEntry.path();
+    if (path.isEmpty() && mHeaderPath != null)
+      path = mHeaderPath;
+    return mCollapsedPaths.contains(path);
+  }
+
+  private void skipHunks() {
+    while (mHasLine && !startsWith(DIFF_GIT))
+      nextLine();
+  }
+
+  private void readHunks(FileEntry.Builder fileEntry, GitDiff.Listener listener,
+      List<CompactHunk> hunks) {
+    LineBuffer buffer = mLines;
+    if (!listener.retainHunks()) {
+      // Reuse a scratch buffer for each hunk
+      buffer = mScratchLines;
+    }
+    int hunkCount = 0;
+    while (mHasLine && startsWith(HUNK_START)) {
+      if (buffer == mScratchLines)
+        buffer.clear();
+
+      Hunk.Builder h = Hunk.newBuilder();
+      h.filename(fileEntry.path());
+      readRangeInformation(h);
+      nextLine();
+
+      int firstLine = buffer.lineCount();
+      int sourceIndex = 0;
+      for (; mHasLine && lineLength() != 0; nextLine()) {
+        byte c = mBuffer[mStart];
+        if (c == ' ') {
+        } else if (c == '-') {
+          sourceIndex = 1;
+        } else if (c == '+') {
+          sourceIndex = 2;
+        } else if (c == '\\') {
+          // We need to detect the 'no newline' message to set the according flag in the hunk
+          if (!lineEquals(NO_NEWLINE))
+            throw parseError("Unknown message");
+          switch (sourceIndex) {
+          default:
+            throw badState("No newline, but no file to attach it to");
+          case 1:
+            h.missingNewline1(true);
+            break;
+          case 2:
+            h.missingNewline2(true);
+            break;
+          }
+          // Don't include the newline message in the text, since we've extracted it to the appropriate flags
+          continue;
+        } else
+          break;
+        buffer.append(mBuffer, mStart, lineLength());
+      }
+      CompactHunk hunk = new CompactHunk(h.build(), buffer, firstLine, buffer.lineCount() - firstLine);
+      hunkCount++;
+      listener.hunk(fileEntry, hunk);
+      if (listener.retainHunks())
+        hunks.add(hunk);
+    }
+    checkState(hunkCount != 0, "missing hunks");
+  }
+
+  /**
+   * Parse the range information line, which has this format (from
+   * https://en.wikipedia.org/wiki/Diff#Unified_format):
+   *
+   * <pre>
+   *  @@ -l[,s] +l[,s] @@[ optional section heading]
+   * </pre>
+   */
+  private void readRangeInformation(Hunk.Builder h) {
+    mScan = mStart + HUNK_START.length;
+    expect('-');
+    // Let's have the line numbers start at zero for simplicity later
+    h.r1Begin(readInteger() - 1);
+    h.r1Count(1);
+    if (readIf(','))
+      h.r1Count(readInteger());
+    expect(' ');
+    expect('+');
+    h.r2Begin(readInteger() - 1);
+    h.r2Count(1);
+    if (readIf(','))
+      h.r2Count(readInteger());
+    expect(' ');
+    expect('@');
+    expect('@');
+  }
+
+  private boolean readIf(char c) {
+    if (mScan < mEnd && mBuffer[mScan] == c) {
+      mScan++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(char c) {
+    if (!readIf(c))
+      throw parseError("Expected '" + c + "' in range information");
+  }
+
+  private int readInteger() {
+    int start = mScan;
+    int value = 0;
+    while (mScan < mEnd) {
+      int digit = mBuffer[mScan] - '0';
+      if (digit < 0 || digit > 9)
+        break;
+      value = value * 10 + digit;
+      mScan++;
+    }
+    if (mScan == start)
+      throw parseError("Expected integer in range information");
+    return value;
+  }
+
+  // ------------------------------------------------------------------
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static final byte[] DIFF_GIT = bytes("diff --git");
+  private static final byte[] INDEX = bytes("index");
+  private static final byte[] SIMILARITY_INDEX = bytes("similarity index ");
+  private static final byte[] DISSIMILARITY_INDEX = bytes("dissimilarity index ");
+  private static final byte[] OLD_MODE = bytes("old mode ");
+  private static final byte[] NEW_MODE = bytes("new mode ");
+  private static final byte[] DELETED_FILE_MODE = bytes("deleted file mode ");
+  private static final byte[] NEW_FILE_MODE = bytes("new file mode ");
+  private static final byte[] COPY_FROM = bytes("copy from ");
+  private static final byte[] COPY_TO = bytes("copy to ");
+  private static final byte[] RENAME_FROM = bytes("rename from ");
+  private static final byte[] RENAME_TO = bytes("rename to ");
+  private static final byte[] MINUS_HEADER = bytes("--- ");
+  private static final byte[] PLUS_HEADER = bytes("+++ ");
+  private static final byte[] BINARY = bytes("Binary files ");
+  private static final byte[] AND = bytes(" and ");
+  private static final byte[] DIFFER = bytes(" differ");
+  private static final byte[] B_PREFIX = bytes("b/");
+  private static final byte[] DEV_NULL = bytes("/dev/null");
+  private static final byte[] HUNK_START = bytes("@@ ");
+  private static final byte[] NO_NEWLINE = bytes("\\ No newline at end of file");
+
+  private final InputStream mInput;
+  private LineBuffer mLines;
+  private LineBuffer mScratchLines;
+  private Set<String> mCollapsedPaths;
+  // Path named by the current 'diff --git' header, if needed to identify a collapsed entry
+  private String mHeaderPath;
+  private boolean mVerbose;
+
+  private byte[] mBuffer = new byte[1 << 16];
+  private int mLimit;
+  private boolean mEof;
+  private boolean mHasLine;
+  private int mStart;
+  private int mEnd;
+  private int mLineNumber;
+  private int mScan;
+}
@@ -0,0 +1,140 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import js.base.BaseObject;
+
+/**
+ * A summary of the changes within each directory of a diff, built from 'git
+ * diff --numstat' without parsing any hunks
+ */
+public final class DirectorySummary extends BaseObject {
+
+  public DirectorySummary(File repoRoot, String commitName) {
+    mRepoRoot = repoRoot;
+    mCommitName = commitName;
+  }
+
+  /**
+   * A directory, with the totals for the changed files within its subtree
+   */
+  public static final class Node {
+
+    Node(String path) {
+      mPath = path;
+    }
+
+    /**
+     * Get the directory's path, relative to the repository root ("" for the
+     * root)
+     */
+    public String path() {
+      return mPath;
+    }
+
+    public String name() {
+      return mPath.substring(mPath.lastIndexOf('/') + 1);
+    }
+
+    public int fileCount() {
+      return mFileCount;
+    }
+
+    /**
+     * Get the number of changed files directly within this directory
+     */
+    public int localFileCount() {
+      return mLocalFileCount;
+    }
+
+    public int added() {
+      return mAdded;
+    }
+
+    public int deleted() {
+      return mDeleted;
+    }
+
+    /**
+     * Get the subdirectories that contain changes, in order by name
+     */
+    public List<Node> children() {
+      return new ArrayList<>(mChildren.values());
+    }
+
+    @Override
+    public String toString() {
+      return (mPath.isEmpty() ? "." : mPath) + "/ (" + mFileCount + " files, +" + mAdded + " -" + mDeleted
+          + ")";
+    }
+
+    private final String mPath;
+    private int mFileCount;
+    private int mLocalFileCount;
+    private int mAdded;
+    private int mDeleted;
+    private final Map<String, Node> mChildren = new TreeMap<>();
+  }
+
+  /**
+   * Get the node for a directory, or null if it contains no changes
+   */
+  public Node node(String path) {
+    return nodes().get(path);
+  }
+
+  public Node root() {
+    return node("");
+  }
+
+  private Map<String, Node> nodes() {
+    if (mNodes == null) {
+      mNodes = hashMap();
+      mNodes.put("", new Node(""));
+      for (DiffFilter.NumStat st : DiffFilter.readNumStats(mRepoRoot, mCommitName, null, verbose())) {
+        String dir = parent(st.path);
+        createNode(dir).mLocalFileCount++;
+        while (true) {
+          Node n = createNode(dir);
+          n.mFileCount++;
+          n.mAdded += Math.max(0, st.added);
+          n.mDeleted += Math.max(0, st.deleted);
+          if (dir.isEmpty())
+            break;
+          dir = parent(dir);
+        }
+      }
+      log("changed files:", root().fileCount());
+    }
+    return mNodes;
+  }
+
+  private Node createNode(String path) {
+    Node n = mNodes.get(path);
+    if (n == null) {
+      n = new Node(path);
+      mNodes.put(path, n);
+      Node parent = createNode(parent(path));
+      parent.mChildren.put(n.name(), n);
+    }
+    return n;
+  }
+
+  /**
+   * Get the parent of a directory ("" for the root)
+   */
+  public static String parent(String path) {
+    int slash = path.lastIndexOf('/');
+    return slash < 0 ? "" : path.substring(0, slash);
+  }
+
+  private final File mRepoRoot;
+  private final String mCommitName;
+  private Map<String, Node> mNodes;
+}
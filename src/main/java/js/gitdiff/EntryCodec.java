@@ -0,0 +1,82 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import gitutil.gen.FileEntry;
+import gitutil.gen.Hunk;
+import js.json.JSMap;
+
+/**
+ * Reads and writes the binary form of a file entry and its hunks, as stored by
+ * the parse caches
+ */
+final class EntryCodec {
+
+  /**
+   * Write a file entry and its hunks
+   */
+  public void write(DataOutputStream output, FileEntry fileEntry, List<CompactHunk> fileHunks)
+      throws IOException {
+    output.writeUTF(fileEntry.toJson().toString());
+    output.writeInt(fileHunks.size());
+    for (CompactHunk h : fileHunks) {
+      output.writeUTF(h.header().toJson().toString());
+      output.writeInt(h.lineCount());
+      for (int i = 0; i < h.lineCount(); i++) {
+        int length = h.lineLength(i);
+        h.copyLine(i, lineBytes(length));
+        output.writeInt(length);
+        output.write(mLineBytes, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Read a file entry and its hunks, storing the hunks' lines in a LineBuffer.
+   * The size is that of the record or file being read, and bounds the lengths
+   * read from it
+   */
+  public void read(DataInputStream input, long size, LineBuffer lines, List<FileEntry> fileEntries,
+      List<List<CompactHunk>> hunks) throws IOException {
+    fileEntries.add(FileEntry.DEFAULT_INSTANCE.parse(new JSMap(input.readUTF())));
+    int hunkCount = readLength(input, size);
+    List<CompactHunk> fileHunks = arrayList();
+    for (int i = 0; i < hunkCount; i++) {
+      Hunk header = Hunk.DEFAULT_INSTANCE.parse(new JSMap(input.readUTF()));
+      int lineCount = readLength(input, size);
+      int firstLine = lines.lineCount();
+      for (int j = 0; j < lineCount; j++) {
+        int length = readLength(input, size);
+        input.readFully(lineBytes(length), 0, length);
+        lines.append(mLineBytes, 0, length);
+      }
+      fileHunks.add(new CompactHunk(header, lines, firstLine, lineCount));
+    }
+    hunks.add(fileHunks);
+  }
+
+  /**
+   * Read a length or count, checking that it is plausible (i.e., not negative,
+   * and not more than the size of the record or file being read), so that a
+   * corrupted file causes an IOException rather than an enormous allocation
+   */
+  public static int readLength(DataInputStream input, long size) throws IOException {
+    int length = input.readInt();
+    if (length < 0 || length > size)
+      throw new IOException("invalid length: " + length);
+    return length;
+  }
+
+  private byte[] lineBytes(int length) {
+    if (length > mLineBytes.length)
+      mLineBytes = new byte[Math.max(length, mLineBytes.length * 2)];
+    return mLineBytes;
+  }
+
+  private byte[] mLineBytes = new byte[256];
+}
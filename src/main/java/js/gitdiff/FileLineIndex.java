@@ -0,0 +1,85 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import js.file.Files;
+
+/**
+ * Provides access to the lines of a file through a memory mapping. The table
+ * of line offsets is only extended as far as the lines that have been asked
+ * for, and is kept, so reading more lines nearby costs only the lines read
+ */
+final class FileLineIndex {
+
+  FileLineIndex(File file) {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      // (the mapping remains valid after the channel is closed)
+      mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+  }
+
+  /**
+   * Determine if the file has a line with a particular (zero-based) index
+   */
+  public boolean hasLine(int index) {
+    return index >= 0 && findLine(index);
+  }
+
+  /**
+   * Append a line (without its linefeed), preceded by a diff marker (e.g. ' '),
+   * to a LineBuffer
+   */
+  public void appendLine(int index, char marker, LineBuffer destination) {
+    checkArgument(hasLine(index), "no such line:", index);
+    int start = mOffsets[index];
+    int end = mOffsets[index + 1];
+    if (end > start && mBuffer.get(end - 1) == '\n')
+      end--;
+    int length = end - start;
+    if (mLineBytes.length < length + 1)
+      mLineBytes = new byte[Math.max(length + 1, mLineBytes.length * 2)];
+    mLineBytes[0] = (byte) marker;
+    ByteBuffer b = mBuffer.duplicate();
+    b.position(start);
+    b.get(mLineBytes, 1, length);
+    destination.append(mLineBytes, 0, length + 1);
+  }
+
+  /**
+   * Extend the table of offsets until it includes a line, if the file has
+   * that many; return false if it doesn't
+   */
+  private boolean findLine(int index) {
+    int limit = mBuffer.limit();
+    while (mLineCount <= index) {
+      int position = mOffsets[mLineCount];
+      if (position >= limit)
+        return false;
+      while (position < limit && mBuffer.get(position) != '\n')
+        position++;
+      if (position < limit)
+        position++;
+      if (mLineCount + 1 == mOffsets.length)
+        mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+      mLineCount++;
+      mOffsets[mLineCount] = position;
+    }
+    return true;
+  }
+
+  private final MappedByteBuffer mBuffer;
+  // Offset of the start of each line found so far, followed by the end of the last one
+  private int[] mOffsets = new int[1 << 10];
+  private int mLineCount;
+  private byte[] mLineBytes = new byte[256];
+}
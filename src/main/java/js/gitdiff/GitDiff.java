@@ -2,15 +2,24 @@ package js.gitdiff;
 
 import static js.base.Tools.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import js.base.BaseObject;
-import js.base.SystemCall;
 import js.file.Files;
+import js.geometry.MyMath;
 import gitutil.gen.FileEntry;
 import gitutil.gen.FileState;
 import gitutil.gen.Hunk;
-import js.parsing.StringParser;
 
 public final class GitDiff extends BaseObject {
 
@@ -18,273 +27,581 @@ public final class GitDiff extends BaseObject {
     mCommitName = commitName;
   }
 
+  public String commitName() {
+    return mCommitName;
+  }
+
   private final String mCommitName;
 
-  public List<FileEntry> fileEntries() {
-    if (mFileEntries == null)
-      parseGitDiff();
-    return mFileEntries;
+  /**
+   * Specify the directory to run git in (by default, the current directory)
+   */
+  public GitDiff withDirectory(File directory) {
+    mDirectory = directory;
+    return this;
   }
 
-  // ------------------------------------------------------------------
-  // Reading lines from gitdiff output
-  // ------------------------------------------------------------------
+  private File mDirectory;
 
-  private List<String> mLines;
-  private int mCursor;
+  /**
+   * Have a filter determine which files are to be collapsed (i.e., not parsed
+   * unless expandCollapsedFiles() is called)
+   */
+  public GitDiff withFilter(DiffFilter filter, File repoRoot) {
+    mFilter = filter;
+    mRepoRoot = repoRoot;
+    return this;
+  }
 
-  private String peek() {
-    if (mCursor == mLines.size())
-      return null;
-    return mLines.get(mCursor);
+  /**
+   * Cache the parsed results for each file, so that unchanged files needn't be
+   * diffed again
+   */
+  public GitDiff withCache(File cacheFile, File repoRoot) {
+    mCacheFile = cacheFile;
+    mRepoRoot = repoRoot;
+    return this;
   }
 
-  private String readLine() {
-    String line = peek();
-    checkState(line != null, "Unexpected end of file");
-    mCursor++;
-    if (verbose())
-      log(mCursor, ">>>", quote(line));
-    return line;
+  private File mCacheFile;
+
+  /**
+   * Cache the parsed results permanently, within a file that is specific to
+   * the commit name; the commit name must be a range between two commit ids
+   * ('<id>..<id>'), whose diff never changes. The cache isn't used for
+   * subtrees
+   */
+  public GitDiff withRangeCache(File cacheFile) {
+    checkArgument(mCommitName.contains(".."), "not a commit range:", mCommitName);
+    mRangeCacheFile = cacheFile;
+    return this;
   }
 
-  // ------------------------------------------------------------------
+  private File mRangeCacheFile;
 
-  private void parseGitDiff() {
-    mFileEntries = arrayList();
-    String content = chomp(makeGitDiffSystemCall());
-    if (content.isEmpty())
-      return;
-    mCursor = 0;
-    mLines = split(content, '\n');
-    while (peek() != null) {
-      readGitDiffHeader();
-      FileEntry.Builder fileEntry = FileEntry.newBuilder();
-      readExtendedHeader(fileEntry);
-      if (peek() == null || peek().startsWith("diff --git")) {
-      } else if (peek().startsWith("Binary")) {
-        processBinaryFile(fileEntry);
-      } else {
-        log("read start of diff");
-        readUnifiedHeader(fileEntry);
-        readHunks(fileEntry);
+  /**
+   * Keep the lines of hunks in a memory-mapped temporary file, rather than on
+   * the heap, so that heap use doesn't depend on the size of the diff
+   */
+  public GitDiff withBoundedMemory() {
+    mSpill = new SpillFile();
+    return this;
+  }
+
+  private SpillFile mSpill;
+
+  /**
+   * Restrict the diff to a directory (relative to the repository root)
+   */
+  public GitDiff withSubtree(String directory) {
+    mSubtree = nullOrEmpty(directory) ? null : directory;
+    return this;
+  }
+
+  private String mSubtree;
+
+  public List<FileEntry> fileEntries() {
+    if (mFileEntries == null) {
+      List<String> pathspecs = arrayList();
+      String subtreePathspec = null;
+      if (mSubtree != null) {
+        subtreePathspec = ":(top)" + mSubtree;
+        pathspecs.add(subtreePathspec);
+      }
+      mCollapsedFiles = arrayList();
+      mCollapsedPaths = hashSet();
+      if (mFilter != null) {
+        mCollapsedFiles = mFilter.classify(mRepoRoot, mCommitName, subtreePathspec);
+        for (DiffFilter.CollapsedFile cf : mCollapsedFiles)
+          mCollapsedPaths.add(cf.path());
+        // If there aren't too many, have git exclude them, to avoid generating their diffs at all;
+        // otherwise, the parser will skip them
+        if (!mCollapsedFiles.isEmpty() && mCollapsedFiles.size() <= MAX_EXCLUDE_PATHSPECS) {
+          if (pathspecs.isEmpty())
+            pathspecs.add(":/");
+          for (DiffFilter.CollapsedFile cf : mCollapsedFiles)
+            pathspecs.add(":(top,literal,exclude)" + cf.path());
+        }
       }
-      mFileEntries.add(fileEntry.build());
+      List<FileEntry> fileEntries = arrayList();
+      mHunks = arrayList();
+      if (mRangeCacheFile != null && mSubtree == null)
+        readFileEntriesUsingRangeCache(pathspecs, fileEntries, mHunks);
+      else if (mCacheFile != null)
+        readFileEntriesUsingCache(pathspecs, fileEntries, mHunks);
+      else
+        readFileEntries(pathspecs, fileEntries, mHunks);
+      mFileEntries = fileEntries;
+      startAnalysis();
     }
+    return mFileEntries;
   }
 
-  private String makeGitDiffSystemCall() {
-    SystemCall s = new SystemCall().withVerbose(verbose());
-    s.arg("git", "diff");
-    if (!nullOrEmpty(mCommitName))
-      s.arg(mCommitName);
-    s.arg("-U1");
-    return s.assertSuccess().systemOut();
+  /**
+   * Get the hunks for a file entry. The FileEntry objects themselves have no
+   * hunks, since the hunks' lines are stored compactly
+   */
+  public List<CompactHunk> hunks(int fileIndex) {
+    fileEntries();
+    return mHunks.get(fileIndex);
   }
 
-  private StringParser readIntoParser() {
-    return new StringParser(readLine());
+  /**
+   * Get the HunkFingerprint of a hunk
+   */
+  public long hunkFingerprint(int fileIndex, int hunkIndex) {
+    while (mFingerprints.size() <= fileIndex)
+      mFingerprints.add(null);
+    long[] fingerprints = mFingerprints.get(fileIndex);
+    if (fingerprints == null) {
+      fingerprints = HunkFingerprint.of(entryPath(fileEntries().get(fileIndex)), hunks(fileIndex));
+      mFingerprints.set(fileIndex, fingerprints);
+    }
+    return fingerprints[hunkIndex];
   }
 
-  private void readGitDiffHeader() {
-    log("read git diff header");
-    StringParser p = readIntoParser();
-    p.read("diff --git");
+  /**
+   * Get the path that identifies a file entry; that of a deleted file is its
+   * original path
+   */
+  static String entryPath(FileEntry fe) {
+    return fe.state() == FileState.DELETED ? fe.origPath() : fe.path();
   }
 
-  private void readExtendedHeader(FileEntry.Builder fileEntry) {
-    fileEntry.state(FileState.MODIFIED);
+  /**
+   * Get the files that were collapsed by the filter, and haven't been expanded
+   */
+  public List<DiffFilter.CollapsedFile> collapsedFiles() {
+    fileEntries();
+    return mCollapsedFiles;
+  }
 
-    // We don't know if we are going to consume the next line, so 
-    // only do so on subsequent returns to the top of the while loop
-    boolean readLine = false;
+  /**
+   * Parse the hunks of the collapsed files, appending them to the file entries;
+   * return the index of the first new entry
+   */
+  public int expandCollapsedFiles() {
+    List<FileEntry> fileEntries = fileEntries();
+    // Don't modify the hunks while they are being analyzed
+    searchIndex();
+    hunkClass(0, 0);
+    hunkGroups();
+    int firstIndex = fileEntries.size();
+    List<DiffFilter.CollapsedFile> collapsed = mCollapsedFiles;
+    mCollapsedFiles = arrayList();
+    mCollapsedPaths = hashSet();
+
+    for (int start = 0; start < collapsed.size(); start += MAX_EXCLUDE_PATHSPECS) {
+      List<String> pathspecs = arrayList();
+      int end = Math.min(collapsed.size(), start + MAX_EXCLUDE_PATHSPECS);
+      for (int i = start; i < end; i++)
+        pathspecs.add(":(top,literal)" + collapsed.get(i).path());
+      readFileEntries(pathspecs, fileEntries, mHunks);
+    }
+    startAnalysis();
+    return firstIndex;
+  }
 
-    while (true) {
-      if (readLine)
-        readLine();
-      readLine = true;
+  /**
+   * Get the search index for the hunks, waiting for it to be built if
+   * necessary
+   */
+  public HunkIndex searchIndex() {
+    fileEntries();
+    return result(mSearchIndex);
+  }
 
-      // see https://git-scm.com/docs/git-diff
+  /**
+   * Get the HunkClassifier class of a hunk, waiting for the hunks to be
+   * classified if necessary; returns CLASS_NONE if there is no such hunk
+   */
+  public int hunkClass(int fileIndex, int hunkIndex) {
+    fileEntries();
+    List<int[]> classes = result(mHunkClasses);
+    if (fileIndex >= classes.size() || hunkIndex >= classes.get(fileIndex).length)
+      return HunkClassifier.CLASS_NONE;
+    return classes.get(fileIndex)[hunkIndex];
+  }
 
-      String line = peek();
-      if (line == null)
-        break;
+  /**
+   * Get the groups of hunks that make identical changes, waiting for them to
+   * be found if necessary
+   */
+  public HunkGroups hunkGroups() {
+    fileEntries();
+    return result(mHunkGroups);
+  }
 
-      StringParser p = new StringParser(line);
+  private static <T> T result(FutureTask<T> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
+    } catch (ExecutionException e) {
+      throw asRuntimeException(e.getCause());
+    }
+  }
 
-      if (p.readIf("index")) {
-        continue;
-      }
-      if (p.readIf("similarity index ")) {
-        p.readRemaining();
-        continue;
-      }
+  /**
+   * Start building the search index, classifying the hunks, and grouping the
+   * identical hunks, on background threads
+   */
+  private void startAnalysis() {
+    List<FileEntry> fileEntries = new ArrayList<>(mFileEntries);
+    List<List<CompactHunk>> hunks = new ArrayList<>(mHunks);
+    // In bounded memory mode, the trigram index isn't built (since it grows with the diff);
+    // searches examine every (spilled) hunk instead
+    boolean buildIndex = mSpill == null;
+    FutureTask<HunkIndex> indexTask = new FutureTask<>(() -> {
+      long startTime = System.currentTimeMillis();
+      HunkIndex index = new HunkIndex(fileEntries, hunks, buildIndex);
+      if (verbose())
+        log("indexed", index.hunkCount(), "hunks in", System.currentTimeMillis() - startTime, "ms");
+      return index;
+    });
+    mSearchIndex = indexTask;
+    startThread(indexTask, "gitdiff-index");
+
+    FutureTask<List<int[]>> classifyTask = new FutureTask<>(
+        () -> HunkClassifier.classify(fileEntries, hunks));
+    mHunkClasses = classifyTask;
+    startThread(classifyTask, "gitdiff-classify");
+
+    FutureTask<HunkGroups> groupTask = new FutureTask<>(() -> {
+      long startTime = System.currentTimeMillis();
+      HunkGroups groups = new HunkGroups(hunks);
+      if (verbose())
+        log("found", groups.groupCount(), "groups of identical hunks in",
+            System.currentTimeMillis() - startTime, "ms");
+      return groups;
+    });
+    mHunkGroups = groupTask;
+    startThread(groupTask, "gitdiff-group");
+  }
 
-      if (p.readIf("old mode ")) {
-        fileEntry.oldMode(p.readRemaining());
-        continue;
-      }
-      if (p.readIf("new mode ")) {
-        fileEntry.mode(p.readRemaining());
-        continue;
-      }
-      if (p.readIf("deleted file mode ")) {
-        fileEntry.mode(p.readRemaining());
-        fileEntry.state(FileState.DELETED);
-        continue;
-      }
-      if (p.readIf("new file mode ")) {
-        fileEntry.mode(p.readRemaining());
-        fileEntry.state(FileState.ADDED);
-        continue;
+  private static void startThread(Runnable runnable, String name) {
+    Thread t = new Thread(runnable, name);
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  /**
+   * Diff a single file again (e.g., after it has been edited), replacing its
+   * entry and hunks; if it no longer differs, it is left with no hunks
+   */
+  public void rediffFile(int fileIndex) {
+    FileEntry ent = fileEntries().get(fileIndex);
+    // Don't modify the hunks while they are being analyzed
+    searchIndex();
+    hunkClass(0, 0);
+    hunkGroups();
+
+    List<String> pathspecs = arrayList();
+    pathspecs.add(":(top,literal)" + ent.path());
+    if (!nullOrEmpty(ent.origPath()) && !ent.origPath().equals(ent.path()))
+      pathspecs.add(":(top,literal)" + ent.origPath());
+    List<FileEntry> entries = arrayList();
+    List<List<CompactHunk>> hunks = arrayList();
+    readFileEntries(pathspecs, entries, hunks);
+    if (entries.isEmpty())
+      mHunks.set(fileIndex, arrayList());
+    else {
+      mFileEntries.set(fileIndex, entries.get(0));
+      mHunks.set(fileIndex, hunks.get(0));
+    }
+    if (fileIndex < mFingerprints.size())
+      mFingerprints.set(fileIndex, null);
+    mRowIndexHunk = null;
+    // The file may have been edited
+    mContextSources.clear();
+    startAnalysis();
+  }
+
+  private static final int MAX_EXCLUDE_PATHSPECS = 500;
+
+  private void readFileEntries(List<String> pathspecs, List<FileEntry> fileEntries,
+      List<List<CompactHunk>> hunks) {
+    parse(new Listener() {
+      @Override
+      public boolean retainHunks() {
+        return mSpill == null;
       }
-      if (p.readIf("copy from ")) {
-        fileEntry.origPath(p.readPath());
-        continue;
+
+      @Override
+      public void hunk(FileEntry fileEntry, CompactHunk hunk) {
+        if (mSpill != null)
+          mSpilledHunks.add(mSpill.spill(hunk));
       }
-      if (p.readIf("copy to ")) {
-        fileEntry.path(p.readPath());
-        continue;
+
+      @Override
+      public void fileEntry(FileEntry fileEntry, List<CompactHunk> fileHunks) {
+        fileEntries.add(fileEntry);
+        if (mSpill != null) {
+          fileHunks = mSpilledHunks;
+          mSpilledHunks = arrayList();
+        }
+        hunks.add(fileHunks);
       }
-      if (p.readIf("rename from ")) {
-        fileEntry.state(FileState.RENAMED);
-        fileEntry.origPath(p.readPath());
+
+      private List<CompactHunk> mSpilledHunks = arrayList();
+    }, pathspecs);
+  }
+
+  /**
+   * Read the file entries, taking those whose keys haven't changed from the
+   * cache, and diffing only the rest
+   */
+  private void readFileEntriesUsingCache(List<String> pathspecs, List<FileEntry> fileEntries,
+      List<List<CompactHunk>> hunks) {
+    long diffTime = System.currentTimeMillis();
+    refreshIndex();
+    List<ParseCache.FileKey> keys = ParseCache.parseRawDiff(runGit(rawDiffArgs(pathspecs)), mRepoRoot);
+    ParseCache cache = new ParseCache(mCacheFile);
+    cache.setVerbose(verbose());
+    cache.load();
+
+    List<ParseCache.FileKey> expandedKeys = arrayList();
+    List<ParseCache.FileKey> misses = arrayList();
+    for (ParseCache.FileKey key : keys) {
+      if (mCollapsedPaths.contains(key.path()))
         continue;
+      expandedKeys.add(key);
+      if (!cache.contains(key))
+        misses.add(key);
+    }
+    log("parse cache hits:", expandedKeys.size() - misses.size(), "misses:", misses.size());
+
+    // Diff the files that missed; if they all did, diff everything at once
+    boolean diffedAll = misses.size() == expandedKeys.size();
+    List<FileEntry> missEntries = arrayList();
+    List<List<CompactHunk>> missHunks = arrayList();
+    if (diffedAll)
+      readFileEntries(pathspecs, missEntries, missHunks);
+    else {
+      for (int start = 0; start < misses.size(); start += MAX_EXCLUDE_PATHSPECS) {
+        List<String> missPathspecs = arrayList();
+        int end = Math.min(misses.size(), start + MAX_EXCLUDE_PATHSPECS);
+        for (int i = start; i < end; i++)
+          for (String path : misses.get(i).paths())
+            missPathspecs.add(":(top,literal)" + path);
+        readFileEntries(missPathspecs, missEntries, missHunks);
       }
-      if (p.readIf("rename to ")) {
-        fileEntry.state(FileState.RENAMED);
-        fileEntry.path(p.readPath());
+    }
+
+    // The diffs of the misses appear in the same order as their keys, though a
+    // file whose contents turned out to be unchanged has none; if a diff
+    // doesn't correspond to a key, don't trust the cache
+    Map<ParseCache.FileKey, Integer> missIndices = hashMap();
+    for (ParseCache.FileKey key : misses)
+      if (missIndices.size() < missEntries.size() && key.matches(missEntries.get(missIndices.size())))
+        missIndices.put(key, missIndices.size());
+    if (missIndices.size() != missEntries.size()) {
+      pr("*** Unexpected diff results; ignoring parse cache");
+      if (diffedAll) {
+        fileEntries.addAll(missEntries);
+        hunks.addAll(missHunks);
+      } else
+        readFileEntries(pathspecs, fileEntries, hunks);
+      return;
+    }
+
+    for (ParseCache.FileKey key : expandedKeys) {
+      Integer missIndex = missIndices.get(key);
+      if (missIndex != null) {
+        FileEntry ent = missEntries.get(missIndex);
+        List<CompactHunk> entHunks = missHunks.get(missIndex);
+        fileEntries.add(ent);
+        hunks.add(entHunks);
+        cache.put(key, ent, entHunks);
+      } else if (!cache.contains(key)) {
+        // (a miss whose contents turned out to be unchanged)
         continue;
+      } else if (mSpill == null)
+        cache.read(key, mLines, fileEntries, hunks);
+      else {
+        mScratchLines.clear();
+        cache.read(key, mScratchLines, fileEntries, hunks);
+        List<CompactHunk> spilled = arrayList();
+        for (CompactHunk h : last(hunks))
+          spilled.add(mSpill.spill(h));
+        hunks.set(hunks.size() - 1, spilled);
       }
-      break;
     }
+    if (mSubtree != null)
+      cache.retainUnused();
+    cache.write(diffTime);
   }
 
-  private void readUnifiedHeader(FileEntry.Builder fileEntry) {
-    log("readUnifiedHeader");
-
-    StringParser p;
-    String pathA, pathB;
-
-    p = readIntoParser();
-    p.read("--- ");
-    pathA = p.readPath();
-    p.assertDone();
+  private void readFileEntriesUsingRangeCache(List<String> pathspecs, List<FileEntry> fileEntries,
+      List<List<CompactHunk>> hunks) {
+    RangeCache cache = new RangeCache(mRangeCacheFile);
+    cache.setVerbose(verbose());
+    if (mSpill == null) {
+      if (cache.read(mCollapsedPaths, mLines, null, fileEntries, hunks))
+        return;
+    } else if (cache.read(mCollapsedPaths, mScratchLines, mSpill, fileEntries, hunks))
+      return;
+    readFileEntries(pathspecs, fileEntries, hunks);
+    cache.write(mCollapsedPaths, fileEntries, hunks);
+  }
 
-    p = readIntoParser();
-    p.read("+++ ");
-    pathB = p.readPath();
-    p.assertDone();
+  /**
+   * Update the stat information in the index, so that 'git diff --raw' doesn't
+   * report files that have been touched (e.g. by a checkout) but not changed.
+   * A failure (e.g., because another git command holds the index lock) is
+   * ignored, as such files are then found to be unchanged when diffed
+   */
+  private void refreshIndex() {
+    List<String> args = Arrays.asList("git", "update-index", "-q", "--refresh");
+    log("running:", args);
+    try {
+      Process process = new ProcessBuilder(args).directory(mDirectory)
+          .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD)
+          .start();
+      process.waitFor();
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
+    }
+  }
 
-    if (fileEntry.state() != FileState.ADDED) {
-      checkArgument(pathA.startsWith("a/"));
-      fileEntry.origPath(pathA.substring(2));
+  private List<String> rawDiffArgs(List<String> pathspecs) {
+    List<String> args = arrayList();
+    args.add("diff");
+    args.add("--raw");
+    args.add("-z");
+    args.add("--no-abbrev");
+    if (!nullOrEmpty(mCommitName))
+      args.add(mCommitName);
+    if (!pathspecs.isEmpty()) {
+      args.add("--");
+      args.addAll(pathspecs);
     }
-    if (fileEntry.state() != FileState.DELETED) {
-      checkArgument(pathB.startsWith("b/"));
-      fileEntry.path(pathB.substring(2));
+    return args;
+  }
+
+  /**
+   * Run a git command, returning its output
+   */
+  private byte[] runGit(List<String> gitArgs) {
+    List<String> args = arrayList();
+    args.add("git");
+    args.addAll(gitArgs);
+    if (verbose())
+      log("running:", args);
+    try {
+      Process process = new ProcessBuilder(args).directory(mDirectory)
+          .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+      byte[] output;
+      try (InputStream input = process.getInputStream()) {
+        output = input.readAllBytes();
+      }
+      int exitCode = process.waitFor();
+      checkState(exitCode == 0, "git failed; exit code:", exitCode, INDENT, args);
+      return output;
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
     }
-    log("file entry:", INDENT, fileEntry);
   }
 
-  private void processBinaryFile(FileEntry.Builder fileEntry) {
-    log("processBinaryFile");
+  /**
+   * Receives the results of parsing the diff, as they are produced
+   */
+  public interface Listener {
 
-    StringParser p;
-    String pathA, pathB;
+    /**
+     * Called when a file's headers have been read, before any of its hunks
+     */
+    default void fileHeader(FileEntry fileEntry) {
+    }
 
-    p = readIntoParser();
-    p.read("Binary files ");
-    pathA = p.readPath();
-    p.read(" and ");
-    pathB = p.readPath();
-    p.read(" differ");
-    p.assertDone();
+    /**
+     * Called for each hunk, as it is read. If hunks are not being retained,
+     * the hunk's lines are only valid until the next hunk is read
+     */
+    default void hunk(FileEntry fileEntry, CompactHunk hunk) {
+    }
 
-    if (fileEntry.state() != FileState.ADDED) {
-      checkArgument(pathA.startsWith("a/"));
-      fileEntry.origPath(pathA.substring(2));
+    /**
+     * Called when a file has been read, with its hunks (if they are being
+     * retained)
+     */
+    default void fileEntry(FileEntry fileEntry, List<CompactHunk> hunks) {
     }
-    if (fileEntry.state() != FileState.DELETED) {
-      checkArgument(pathB.startsWith("b/"));
-      fileEntry.path(pathB.substring(2));
+
+    /**
+     * Return true if the hunks should be retained and passed to fileEntry(); if
+     * false, memory use is independent of the size of the diff
+     */
+    default boolean retainHunks() {
+      return true;
     }
-    log("file entry:", INDENT, fileEntry);
   }
 
-  private void readHunks(FileEntry.Builder fileEntry) {
-
-    while (true) {
+  /**
+   * Parse the output of 'git diff' as it is produced, sending the results to a
+   * listener
+   */
+  public void parse(Listener listener) {
+    parse(listener, arrayList());
+  }
 
-      String x = peek();
-      if (x == null || !x.startsWith("@@"))
-        break;
-      StringParser p = readIntoParser();
-
-      Hunk.Builder h = Hunk.newBuilder();
-      h.filename(fileEntry.path());
-
-      // The range information line has this format (from https://en.wikipedia.org/wiki/Diff#Unified_format):
-      //
-      //  @@ -l[,s] +l[,s] @@[ optional section heading]
-      //
-
-      // Let's have the line numbers start at zero for simplicity later
-      //
-      p.read("@@ -");
-      h.r1Begin(p.readInteger() - 1);
-      h.r1Count(1);
-      if (p.readIf(","))
-        h.r1Count(p.readInteger());
-      p.read(" +");
-      h.r2Begin(p.readInteger() - 1);
-      h.r2Count(1);
-      if (p.readIf(","))
-        h.r2Count(p.readInteger());
-      p.read(" @@");
-
-      int sourceIndex = 0;
-      while (true) {
-        x = peek();
-        if (nullOrEmpty(x))
-          break;
-        char c = x.charAt(0);
-        if (" +-\\".indexOf(c) < 0) {
-          break;
-        }
+  private void parse(Listener listener, List<String> pathspecs) {
+    Process process = startGitDiffProcess(pathspecs);
+    try (InputStream input = process.getInputStream()) {
+      DiffParser parser = new DiffParser(input)//
+          .withLineBuffers(mLines, mScratchLines)//
+          .withCollapsedPaths(mCollapsedPaths);
+      parser.setVerbose(verbose());
+      parser.parse(listener);
+      int exitCode = process.waitFor();
+      checkState(exitCode == 0, "git diff failed; exit code:", exitCode);
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
+    } finally {
+      process.destroy();
+    }
+  }
 
-        // We need to detect the 'no newline' message to set the according flag in the hunk
-        if (c == '-') {
-          sourceIndex = 1;
-        } else if (c == '+') {
-          sourceIndex = 2;
-        } else if (c == '\\') {
-          if (!x.equals("\\ No newline at end of file"))
-            badArg("Unknown message:", quote(x));
-          switch (sourceIndex) {
-          default:
-            badState("No newline, but no file to attach it to");
-            break;
-          case 1:
-            h.missingNewline1(true);
-            break;
-          case 2:
-            h.missingNewline2(true);
-            break;
-          }
-          // Don't include the newline message in the text, since we've extracted it to the appropriate flags
-          readLine();
-          continue;
-        }
-        h.lines().add(x);
-        readLine();
-      }
-      fileEntry.hunks().add(h.build());
+  private Process startGitDiffProcess(List<String> pathspecs) {
+    List<String> args = arrayList();
+    args.add("git");
+    args.add("diff");
+    if (!nullOrEmpty(mCommitName))
+      args.add(mCommitName);
+    args.add("-U1");
+    if (!pathspecs.isEmpty()) {
+      args.add("--");
+      args.addAll(pathspecs);
+    }
+    if (verbose())
+      log("starting:", args);
+    try {
+      return new ProcessBuilder(args).directory(mDirectory).redirectError(ProcessBuilder.Redirect.INHERIT)
+          .start();
+    } catch (IOException e) {
+      throw Files.asFileException(e);
     }
-    checkState(!fileEntry.hunks().isEmpty(), "missing hunks");
   }
 
   private List<FileEntry> mFileEntries;
+  private List<List<CompactHunk>> mHunks;
+  private final List<long[]> mFingerprints = arrayList();
+  private final LineBuffer mLines = new LineBuffer();
+  private final LineBuffer mScratchLines = new LineBuffer();
+  private DiffFilter mFilter;
+  private File mRepoRoot;
+  private List<DiffFilter.CollapsedFile> mCollapsedFiles;
+  private Set<String> mCollapsedPaths;
+  private FutureTask<HunkIndex> mSearchIndex;
+  private FutureTask<List<int[]>> mHunkClasses;
+  private FutureTask<HunkGroups> mHunkGroups;
 
   private static String optionalSubstring(String string, int startPosition) {
     if (startPosition < string.length())
@@ -295,72 +612,188 @@ public final class GitDiff extends BaseObject {
   private static final String sCutoffPrefix = "\u2056\u2058\u2059\u205c\u2055";
   private static final String sCutoffSuffix = new StringBuilder(sCutoffPrefix).reverse().toString();
 
-  public String generateHunkDisplay(FileEntry fileEntry, Hunk hunk, int horizontalOffset) {
-    int terminalWidth = BaseTerminal.terminalWidth() - 1;
+  /**
+   * Determine the number of rows required to display a hunk (a '-' line
+   * followed by a '+' line share a single row)
+   */
+  public int hunkRowCount(CompactHunk hunk) {
+    return rowIndex(hunk).length;
+  }
 
-    List<String> a = arrayList();
-    List<String> b = arrayList();
-    List<String> c = arrayList();
+  /**
+   * Determine the number of hunk rows that fit within the terminal
+   */
+  public int viewportRowCount() {
+    // Leave room for the dividers, the elided line messages, and the prompt
+    return Math.max(MIN_VIEWPORT_ROWS, BaseTerminal.terminalHeight() - 12);
+  }
 
-    int width = (terminalWidth - 8) / 2;
-    int dashSize = terminalWidth;
-    int lineNumber = 0;
-    while (lineNumber < hunk.lines().size()) {
-      String x = hunk.lines().get(lineNumber);
-      String y = x.substring(1);
-      String z = x.substring(0, 1);
-
-      String x2 = null;
-      String z2 = "?";
-      String y2 = "";
-      if (lineNumber + 1 < hunk.lines().size()) {
-        x2 = hunk.lines().get(lineNumber + 1);
-        y2 = x2.substring(1);
-        z2 = x2.substring(0, 1);
-      }
+  private static final int MIN_VIEWPORT_ROWS = 10;
 
-      String prefix = (horizontalOffset != 0) ? sCutoffPrefix : "";
-
-      y = prefix + optionalSubstring(y, horizontalOffset);
-      y2 = prefix + optionalSubstring(y2, horizontalOffset);
-
-      if (z.equals("-") && z2.equals("+")) {
-        a.add(y);
-        b.add(y2);
-        // If the only difference is whitespace, indicate as much
-        String w1 = replaceTabsWithSpaces(y);
-        String w2 = replaceTabsWithSpaces(y2);
-        if (trimRight(w1).equals(trimRight(w2)))
-          c.add("ww");
-        else
-          c.add("++");
+  /**
+   * Get the index of the first line within each row of a hunk; cached for the
+   * most recently displayed hunk, so scrolling through it doesn't repeat the
+   * work
+   */
+  private int[] rowIndex(CompactHunk hunk) {
+    if (mRowIndexHunk != hunk) {
+      int[] rows = new int[hunk.lineCount()];
+      int rowCount = 0;
+      int lineNumber = 0;
+      while (lineNumber < hunk.lineCount()) {
+        rows[rowCount++] = lineNumber;
+        if (isPairedRow(hunk, lineNumber))
+          lineNumber++;
         lineNumber++;
-      } else {
-        switch (z) {
-        case " ":
-          a.add(y);
-          b.add(y);
-          c.add("  ");
-          break;
-        case "-":
-          a.add(y);
-          b.add("");
-          c.add("+.");
-          break;
-        case "+":
-          a.add("");
-          b.add(y);
-          c.add(".+");
-          break;
-        case "\\":
-          a.add("(missing linefeed)");
-          b.add("");
-          c.add("+.");
-          break;
-        }
       }
-      lineNumber++;
+      mRowIndex = Arrays.copyOf(rows, rowCount);
+      mRowIndexHunk = hunk;
+    }
+    return mRowIndex;
+  }
+
+  private static boolean isPairedRow(CompactHunk hunk, int lineNumber) {
+    return lineNumber + 1 < hunk.lineCount() && hunk.marker(lineNumber) == '-'
+        && hunk.marker(lineNumber + 1) == '+';
+  }
+
+  private CompactHunk mRowIndexHunk;
+  private int[] mRowIndex;
+
+  /**
+   * Get a version of a hunk with additional lines of context above and below
+   * it, read from the file's worktree copy; or, for a commit range or a
+   * deleted file, from the appropriate blob. Only lines that exist are added.
+   * The most recent result is cached
+   */
+  public CompactHunk hunkWithContext(File repoRoot, FileEntry fileEntry, CompactHunk hunk, int above,
+      int below) {
+    if (above == 0 && below == 0)
+      return hunk;
+    if (mContextHunk != null && mContextSourceHunk == hunk && mContextAbove == above
+        && mContextBelow == below)
+      return mContextHunk;
+
+    boolean oldSide = fileEntry.state() == FileState.DELETED;
+    FileLineIndex source = contextSource(repoRoot, fileEntry, oldSide);
+    Hunk header = hunk.header();
+    int begin = oldSide ? header.r1Begin() : header.r2Begin();
+    int count = oldSide ? header.r1Count() : header.r2Count();
+    // (an empty range starts at the line preceding it)
+    if (count == 0)
+      begin++;
+
+    LineBuffer lines = mContextLines;
+    lines.clear();
+    for (int i = Math.max(0, begin - above); i < begin; i++)
+      if (source.hasLine(i))
+        source.appendLine(i, ' ', lines);
+    byte[] lineBytes = mContextLineBytes;
+    for (int i = 0; i < hunk.lineCount(); i++) {
+      int length = hunk.lineLength(i);
+      if (lineBytes.length < length)
+        lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+      hunk.copyLine(i, lineBytes);
+      lines.append(lineBytes, 0, length);
+    }
+    mContextLineBytes = lineBytes;
+    for (int i = begin + count; i < begin + count + below && source.hasLine(i); i++)
+      source.appendLine(i, ' ', lines);
+
+    mContextHunk = new CompactHunk(header, lines, 0, lines.lineCount());
+    mContextSourceHunk = hunk;
+    mContextAbove = above;
+    mContextBelow = below;
+    return mContextHunk;
+  }
+
+  /**
+   * Get the line index of the file (or blob) that supplies the context for a
+   * file entry's hunks; the most recently used are cached
+   */
+  private FileLineIndex contextSource(File repoRoot, FileEntry fileEntry, boolean oldSide) {
+    String path = oldSide ? fileEntry.origPath() : fileEntry.path();
+    String revision = null;
+    String commitName = (mCommitName == null) ? "" : mCommitName;
+    int rangeSeparator = commitName.indexOf("..");
+    if (oldSide)
+      revision = rangeSeparator < 0 ? commitName : commitName.substring(0, rangeSeparator);
+    else if (rangeSeparator >= 0)
+      revision = commitName.substring(rangeSeparator + 2);
+    String key = revision + ":" + path;
+    FileLineIndex index = mContextSources.get(key);
+    if (index == null) {
+      File file = (revision == null) ? new File(repoRoot, path) : blobFile(revision, path);
+      index = new FileLineIndex(file);
+      mContextSources.put(key, index);
+    }
+    return index;
+  }
+
+  /**
+   * Write a blob to a temporary file
+   */
+  private File blobFile(String revision, String path) {
+    List<String> args = arrayList();
+    args.add("git");
+    args.add("cat-file");
+    args.add("blob");
+    args.add(revision + ":" + path);
+    if (verbose())
+      log("running:", args);
+    try {
+      File file = File.createTempFile("gitdiff", ".blob");
+      file.deleteOnExit();
+      Process process = new ProcessBuilder(args).directory(mDirectory)
+          .redirectError(ProcessBuilder.Redirect.INHERIT).redirectOutput(file).start();
+      int exitCode = process.waitFor();
+      checkState(exitCode == 0, "git failed; exit code:", exitCode, INDENT, args);
+      return file;
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  // Number of files (or blobs) to keep indexes of, for expanding context
+  private static final int MAX_CONTEXT_SOURCES = 8;
+
+  private final LineBuffer mContextLines = new LineBuffer(1 << 12, 1 << 6);
+  private byte[] mContextLineBytes = new byte[256];
+  private CompactHunk mContextHunk;
+  private CompactHunk mContextSourceHunk;
+  private int mContextAbove;
+  private int mContextBelow;
+  private final Map<String, FileLineIndex> mContextSources = new LinkedHashMap<String, FileLineIndex>(16,
+      0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, FileLineIndex> eldest) {
+      return size() > MAX_CONTEXT_SOURCES;
     }
+  };
+
+  /**
+   * Generate the display for a hunk, showing only those rows that fit within a
+   * viewport starting at a particular row
+   */
+  public String generateHunkDisplay(FileEntry fileEntry, CompactHunk hunk, int horizontalOffset,
+      int verticalOffset) {
+    return generateHunkDisplay(fileEntry, hunk, horizontalOffset, verticalOffset,
+        BaseTerminal.terminalWidth() - 1, viewportRowCount());
+  }
+
+  /**
+   * Generate the display for a hunk, for a terminal of a particular size
+   */
+  String generateHunkDisplay(FileEntry fileEntry, CompactHunk hunk, int horizontalOffset,
+      int verticalOffset, int terminalWidth, int viewportRows) {
+    int width = (terminalWidth - 8) / 2;
+    int dashSize = terminalWidth;
+
+    int[] rows = rowIndex(hunk);
+    int firstRow = MyMath.clamp(verticalOffset, 0, Math.max(0, rows.length - viewportRows));
+    int endRow = Math.min(rows.length, firstRow + viewportRows);
 
     StringBuilder sb = new StringBuilder();
     dashes(sb, dashSize, null);
@@ -370,52 +803,12 @@ public final class GitDiff extends BaseObject {
     //
     sb.append(BaseTerminal.BLUE);
 
-    int maxLines = 20;
-    if (a.size() <= maxLines) {
-      for (int i = 0; i < a.size(); i++) {
-        String x = replaceTabsWithSpaces(a.get(i));
-        String y = replaceTabsWithSpaces(b.get(i));
-        pad(sb, x, width);
-        sb.append("   ");
-        sb.append(c.get(i));
-        sb.append("   ");
-        pad(sb, y, width);
-        sb.append('\n');
-      }
-    } else {
-      for (int i = 0; i < maxLines / 2; i++) {
-        String x = replaceTabsWithSpaces(a.get(i));
-        String y = replaceTabsWithSpaces(b.get(i));
-        pad(sb, x, width);
-        sb.append("   ");
-        sb.append(c.get(i));
-        sb.append("   ");
-        pad(sb, y, width);
-        sb.append('\n');
-      }
-
-      sb.append('\n');
-      pad(sb, "", width);
-      sb.append("   :\n");
-      pad(sb, "", width - 4);
-      sb.append("(");
-      sb.append(a.size() - maxLines);
-      sb.append(" lines)\n");
-      pad(sb, "", width);
-      sb.append("   :\n");
-      sb.append('\n');
-      for (int j = 0; j < maxLines / 2; j++) {
-        int i = a.size() - (maxLines / 2) + j;
-        String x = replaceTabsWithSpaces(a.get(i));
-        String y = replaceTabsWithSpaces(b.get(i));
-        pad(sb, x, width);
-        sb.append("   ");
-        sb.append(c.get(i));
-        sb.append("   ");
-        pad(sb, y, width);
-        sb.append('\n');
-      }
-    }
+    if (firstRow > 0)
+      elidedRows(sb, width, firstRow, "above");
+    for (int row = firstRow; row < endRow; row++)
+      renderRow(sb, hunk, rows[row], horizontalOffset, width);
+    if (endRow < rows.length)
+      elidedRows(sb, width, rows.length - endRow, "below");
     sb.append('\n');
 
     sb.append(BaseTerminal.RESET);
@@ -442,6 +835,72 @@ public final class GitDiff extends BaseObject {
     return sb.toString();
   }
 
+  private static void renderRow(StringBuilder sb, CompactHunk hunk, int lineNumber,
+      int horizontalOffset, int width) {
+    String x = hunk.line(lineNumber);
+    char z = x.charAt(0);
+    String prefix = (horizontalOffset != 0) ? sCutoffPrefix : "";
+    String y = prefix + optionalSubstring(x.substring(1), horizontalOffset);
+
+    String left;
+    String right;
+    String marker;
+
+    if (isPairedRow(hunk, lineNumber)) {
+      String y2 = prefix + optionalSubstring(hunk.line(lineNumber + 1).substring(1), horizontalOffset);
+      left = replaceTabsWithSpaces(y);
+      right = replaceTabsWithSpaces(y2);
+      // If the only difference is whitespace, indicate as much
+      marker = left.equals(right) ? "ww" : "++";
+    } else {
+      switch (z) {
+      default:
+        left = y;
+        right = y;
+        marker = "  ";
+        break;
+      case '-':
+        left = y;
+        right = "";
+        marker = "+.";
+        break;
+      case '+':
+        left = "";
+        right = y;
+        marker = ".+";
+        break;
+      case '\\':
+        left = "(missing linefeed)";
+        right = "";
+        marker = "+.";
+        break;
+      }
+      left = replaceTabsWithSpaces(left);
+      right = replaceTabsWithSpaces(right);
+    }
+    pad(sb, left, width);
+    sb.append("   ");
+    sb.append(marker);
+    sb.append("   ");
+    pad(sb, right, width);
+    sb.append('\n');
+  }
+
+  private static void elidedRows(StringBuilder sb, int width, int count, String where) {
+    sb.append('\n');
+    pad(sb, "", width);
+    sb.append("   :\n");
+    pad(sb, "", width - 4);
+    sb.append("(");
+    sb.append(count);
+    sb.append(" lines ");
+    sb.append(where);
+    sb.append(")\n");
+    pad(sb, "", width);
+    sb.append("   :\n");
+    sb.append('\n');
+  }
+
   /**
    * Fix up whitespace for a single line of text: trim trailing whitespace, and
    * replace tabs with spaces. Trims any trailing linefeeds.
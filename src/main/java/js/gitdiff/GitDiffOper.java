@@ -2,11 +2,22 @@ package js.gitdiff;
 
 import static js.base.Tools.*;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
 
 import js.app.AppOper;
@@ -34,7 +45,8 @@ public class GitDiffOper extends AppOper {
 
   @Override
   protected void longHelp(BasePrinter b) {
-       b.pr("[ forget | distance <x> | unaccept]*");
+       b.pr("[ forget | distance <x> | unaccept | export | collapse | collapse_lines <n> | collapse_bytes <n>"
+           + " | repos <dir,dir,...> | submodules ]*");
   }
   
   @Override
@@ -45,23 +57,187 @@ public class GitDiffOper extends AppOper {
   private static final String CLARG_FORGET = "forget";
   private static final String CLARG_DISTANCE = "distance";
   private static final String CLARG_UNACCEPT = "unaccept";
+  private static final String CLARG_EXPORT = "export";
+  private static final String CLARG_COLLAPSE = "collapse";
+  private static final String CLARG_COLLAPSE_LINES = "collapse_lines";
+  private static final String CLARG_COLLAPSE_BYTES = "collapse_bytes";
+  private static final String CLARG_REPOS = "repos";
+  private static final String CLARG_SUBMODULES = "submodules";
+  private static final String CLARG_NO_CACHE = "no_cache";
+  private static final String CLARG_BOUNDED_MEMORY = "bounded_memory";
+  private static final String CLARG_TREE = "tree";
+  private static final String CLARG_RANGE = "range";
+  private static final String CLARG_BACKUP_MAX_AGE = "backup_max_age";
+  private static final String CLARG_BACKUP_MAX_MB = "backup_max_mb";
+  private static final String CLARG_BACKUP_MAX_VERSIONS = "backup_max_versions";
 
   @Override
   public void addCommandLineArgs(CmdLineArgs ca) {
     ca.add(CLARG_FORGET).desc("Forget any previously accepted differences").shortName("f");
     ca.add(CLARG_DISTANCE).def(0).desc("revision distance from previous commit").shortName("d");
     ca.add(CLARG_UNACCEPT).desc("unaccept most recent change").shortName("u");
+    ca.add(CLARG_EXPORT).desc("write files and hunks to stdout as newline-delimited JSON").shortName("x");
+    ca.add(CLARG_COLLAPSE).desc("collapse generated, vendored and oversized files into a summary")
+        .shortName("c");
+    ca.add(CLARG_COLLAPSE_LINES).def(2000).desc("collapse files with more than this many changed lines");
+    ca.add(CLARG_COLLAPSE_BYTES).def(1000000).desc("collapse files larger than this many bytes");
+    ca.add(CLARG_REPOS).def("").desc("comma-separated list of repository directories to review");
+    ca.add(CLARG_SUBMODULES).desc("include the repositories' submodules in the review").shortName("m");
+    ca.add(CLARG_NO_CACHE).desc("diff every file, rather than using the results cached by earlier runs");
+    ca.add(CLARG_BOUNDED_MEMORY).desc("keep hunks in a temporary file rather than in memory, for huge diffs")
+        .shortName("b");
+    ca.add(CLARG_TREE).desc("navigate the changed directories, diffing each only when it is reviewed")
+        .shortName("t");
+    ca.add(CLARG_RANGE).desc("review the commits since the previous commit, ignoring the worktree")
+        .shortName("r");
+    ca.add(CLARG_BACKUP_MAX_AGE).def(30).desc("delete older versions of backups after this many days");
+    ca.add(CLARG_BACKUP_MAX_MB).def(1024)
+        .desc("delete the oldest backups while they exceed this many megabytes");
+    ca.add(CLARG_BACKUP_MAX_VERSIONS).def(10).desc("maximum number of backups to keep of each file");
   }
 
   @Override
   public void perform() {
-    diff();
-    reportUnusual();
+    mRepoDirectories = repoDirectories();
+
+    if (cmdLineArgs().get(CLARG_EXPORT)) {
+      for (File dir : mRepoDirectories) {
+        selectRepo(dir, null);
+        export();
+      }
+      return;
+    }
+
+    // Diff the repositories in the background, so that each is ready (or
+    // nearly so) by the time the user has reviewed the previous ones; not in
+    // tree mode, where each directory is diffed only when it is reviewed
+    List<Future<GitDiff>> diffs = arrayList();
+    if (mRepoDirectories.size() > 1 && !cmdLineArgs().get(CLARG_TREE)) {
+      mDiffExecutor = Executors.newFixedThreadPool(
+          Math.min(MAX_DIFF_THREADS, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "gitdiff-prefetch");
+            t.setDaemon(true);
+            return t;
+          });
+      for (File dir : mRepoDirectories)
+        diffs.add(mDiffExecutor.submit(() -> {
+          // (no files of a repository that hasn't been reviewed yet have been expanded)
+          GitDiff d = newGitDiff(dir, new GitRepo(dir), hashSet());
+          d.fileEntries();
+          return d;
+        }));
+    }
+
+    try {
+      for (int i = 0; i < mRepoDirectories.size() && !mQuitFlag; i++)
+        reviewRepo(mRepoDirectories.get(i), diffs.isEmpty() ? null : diffs.get(i));
+    } finally {
+      if (mDiffExecutor != null)
+        mDiffExecutor.shutdownNow();
+    }
+  }
+
+  private static final int MAX_DIFF_THREADS = 4;
+
+  /**
+   * Determine the root directories of the repositories to be reviewed
+   */
+  private List<File> repoDirectories() {
+    List<File> dirs = arrayList();
+    String reposExpr = cmdLineArgs().getString(CLARG_REPOS);
+    if (nullOrEmpty(reposExpr))
+      dirs.add(Files.currentDirectory());
+    else {
+      for (String path : split(reposExpr, ','))
+        if (!path.trim().isEmpty())
+          dirs.add(new File(Files.currentDirectory(), path.trim()));
+    }
+
+    List<File> result = arrayList();
+    for (File dir : dirs) {
+      File root = new GitRepo(dir).rootDirectory();
+      result.add(root);
+      if (cmdLineArgs().get(CLARG_SUBMODULES))
+        result.addAll(submoduleDirectories(root));
+    }
+    return result;
+  }
 
-    // Use a backup directory that is OUTSIDE of the repo, but with a name 
-    // that hopefully is unique to this repo
-    String repoName = repo().rootDirectory().getName();
-    mBackupRootDir = new File(Files.homeDirectory(), ".gitdiff_backups/" + repoName);
+  private List<File> submoduleDirectories(File repoRoot) {
+    String out = new SystemCall().withVerbose(verbose())//
+        .arg("git", "-C", repoRoot, "submodule", "--quiet", "foreach", "--recursive", "pwd")//
+        .assertSuccess().systemOut();
+    List<File> dirs = arrayList();
+    for (String line : split(out, '\n'))
+      if (!line.isEmpty())
+        dirs.add(new File(line));
+    return dirs;
+  }
+
+  /**
+   * Make a repository the subject of subsequent operations
+   */
+  private void selectRepo(File repoDirectory, Future<GitDiff> prefetchedDiff) {
+    mRepoDir = repoDirectory;
+    mGitRepo = null;
+    mGitDiff = null;
+    mPrefetchedDiff = prefetchedDiff;
+    // (the previous repository's store is written, and its flusher thread ends)
+    if (mHunkStore != null)
+      mHunkStore.stopFlusher();
+    mHunkStore = null;
+    mBackups = null;
+    mBackupPruner = null;
+    mExpandedPaths = hashSet();
+    mCollapsedDeclined = false;
+    mSubtree = null;
+    mSubtreeDiffs = null;
+    mRepoStatus = null;
+    mCheckpoint = null;
+
+    mBackupRootDir = backupRootDir(repo());
+  }
+
+  /**
+   * Get the backup directory for a repo. It is OUTSIDE of the repo, with a name
+   * that includes a hash of the repo's path, so repos with the same name don't
+   * collide
+   */
+  private synchronized File backupRootDir(GitRepo repo) {
+    File rootDir = repo.rootDirectory();
+    File backupsDir = new File(Files.homeDirectory(), ".gitdiff_backups");
+    File dir = new File(backupsDir, rootDir.getName() + "_" + pathHash(rootDir));
+    migrateBackupRootDir(new File(backupsDir, rootDir.getName()), dir);
+    return dir;
+  }
+
+  private static String pathHash(File directory) {
+    CRC32 crc = new CRC32();
+    crc.update(directory.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+    return String.format("%08x", crc.getValue());
+  }
+
+  /**
+   * If there's a backup directory that was named by the repo's name alone, and
+   * none with the new name, rename it
+   */
+  private void migrateBackupRootDir(File legacyDir, File dir) {
+    if (dir.exists() || !legacyDir.isDirectory() || files().dryRun())
+      return;
+    log("renaming backup directory", legacyDir, "=>", dir);
+    if (!legacyDir.renameTo(dir) && !dir.exists())
+      badState("Failed to rename", legacyDir, "to", dir);
+  }
+
+  private void reviewRepo(File repoDirectory, Future<GitDiff> prefetchedDiff) {
+    selectRepo(repoDirectory, prefetchedDiff);
+    if (mRepoDirectories.size() > 1)
+      pr("\n=== Repository:", repo().rootDirectory());
+
+    boolean treeMode = cmdLineArgs().get(CLARG_TREE);
+    if (!treeMode)
+      diff();
+    reportUnusual();
 
     {
       // Look for any old backup directory, and warn if it exists
@@ -76,25 +252,55 @@ public class GitDiffOper extends AppOper {
     mBackups = new BackupManager(files(), repo().rootDirectory())//
         .withBackupRootDirectory(mBackupRootDir);
     mBackups.setVerbose(verbose());
-    saveBackups();
-
-    remove_skipped(cmdLineArgs().get(CLARG_FORGET));
-    if (cmdLineArgs().get(CLARG_UNACCEPT)) {
-      unaccept();
+    mBackupPruner = new BackupPruner(files(), mBackupRootDir)//
+        .withMaxAgeDays(cmdLineArgs().getInt(CLARG_BACKUP_MAX_AGE))//
+        .withMaxMegabytes(cmdLineArgs().getInt(CLARG_BACKUP_MAX_MB))//
+        .withMaxVersions(cmdLineArgs().getInt(CLARG_BACKUP_MAX_VERSIONS))//
+        .withReservedNames(HUNK_STORE_NAME, PARSE_CACHE_NAME, RANGE_CACHE_DIR_NAME);
+    mBackupPruner.setVerbose(verbose());
+
+    if (treeMode) {
+      // Hunks of subtrees that aren't visited won't be seen, so don't evict stale entries
+      if (!files().missingWithDryRunActive(mBackupRootDir))
+        hunkStore().startGeneration(cmdLineArgs().get(CLARG_FORGET));
+      reviewTree();
+    } else {
+      saveBackups();
+      startHunkGeneration(cmdLineArgs().get(CLARG_FORGET));
+      if (cmdLineArgs().get(CLARG_UNACCEPT)) {
+        unaccept();
+      }
+      reviewDiff();
     }
 
+    // Save any evictions made by the background compaction
+    flushHunkMap();
+    reportUnusual();
+  }
+
+  /**
+   * Review the hunks of the current diff, until there are none left or the
+   * user quits
+   */
+  private void reviewDiff() {
     Integer skip_file_index = null;
     Integer accept_file_index = null;
 
     int horizontal_offset = 0;
+    int vertical_offset = 0;
     int scroll_amount = 20;
+    int context_above = 0;
+    int context_below = 0;
 
-    HunkCursor.Builder cursor = HunkCursor.DEFAULT_INSTANCE.toBuilder();
+    // Resume where an earlier session left off
+    HunkCursor.Builder cursor = checkpoint().cursor().toBuilder();
+
+    // A range review is of commits, not of the worktree, so it mustn't modify the worktree
+    boolean rangeMode = cmdLineArgs().get(CLARG_RANGE);
 
     //  We repeat this loop until we run out of hunks, or we're told to quit
     boolean reset_scroll = true;
     boolean quit_flag = false;
-    boolean alternate = false;
 
     long targetHash = 0;
 
@@ -105,20 +311,38 @@ public class GitDiffOper extends AppOper {
         targetHash = 0;
       }
 
-      if (cursor.fileIndex() >= diff().fileEntries().size())
-        break;
+      if (cursor.fileIndex() >= diff().fileEntries().size()) {
+        if (!reviewCollapsedFiles())
+          break;
+        continue;
+      }
       FileEntry file_ent = diff().fileEntries().get(cursor.fileIndex());
-      if (cursor.hunkIndex() >= file_ent.hunks().size()) {
+      // Skip files whose hunks are known to have been accepted, without examining them
+      if (cursor.hunkIndex() == 0 && checkpoint().reviewed(cursor.fileIndex())) {
+        cursor.fileIndex(cursor.fileIndex() + 1);
+        continue;
+      }
+      List<CompactHunk> file_hunks = diff().hunks(cursor.fileIndex());
+      if (cursor.hunkIndex() >= file_hunks.size()) {
+        if (countHunks(cursor.fileIndex(), HUNK_ACCEPTED) == file_hunks.size())
+          checkpoint().markReviewed(cursor.fileIndex());
         cursor.fileIndex(cursor.fileIndex() + 1);
         cursor.hunkIndex(0);
         continue;
       }
-      if (reset_scroll)
+      if (reset_scroll) {
         horizontal_offset = 0;
+        vertical_offset = 0;
+        context_above = 0;
+        context_below = 0;
+      }
       reset_scroll = true;
 
-      Hunk h = file_ent.hunks().get(cursor.hunkIndex());
-      long hunk_hash = calculateHash(file_ent, h);
+      CompactHunk h = file_hunks.get(cursor.hunkIndex());
+      // The hunk as displayed, with any additional context
+      CompactHunk displayHunk = diff().hunkWithContext(repo().rootDirectory(), file_ent, h, context_above,
+          context_below);
+      long hunk_hash = diff().hunkFingerprint(cursor.fileIndex(), cursor.hunkIndex());
 
       // Has user already dealt with this hunk?
       if (getHunkStatus(hunk_hash) != HUNK_UNKNOWN) {
@@ -127,30 +351,46 @@ public class GitDiffOper extends AppOper {
       }
       //
       if (skip_file_index != null && skip_file_index == cursor.fileIndex()) {
-        setHunkStatus(hunk_hash, HUNK_SKIPPED);
+        putHunkStatus(file_ent, hunk_hash, HUNK_SKIPPED);
         continue;
       }
       if (accept_file_index != null && accept_file_index == cursor.fileIndex()) {
-        setHunkStatus(hunk_hash, HUNK_ACCEPTED);
+        putHunkStatus(file_ent, hunk_hash, HUNK_ACCEPTED);
         // Sleep a bit so timestamps can still be reliably used for undoing
         SystemUtil.runUnchecked(() -> Thread.sleep(50));
         continue;
       }
-      pr("\n\n\n\n");
-      // Print different number linefeeds each time so user
-      // knows he's making progress
-      if (alternate)
-        pr("\n");
-      alternate ^= true;
+      // If the user has typed ahead, apply those keypresses before rendering anything
+      // (or writing the hunk state)
+      boolean typingAhead = BaseTerminal.hasBufferedInput();
+      checkpoint().setCursor(cursor.fileIndex(), acceptedPrefix(cursor.fileIndex(), cursor.hunkIndex()));
+      if (!typingAhead) {
+        saveCheckpoint();
+        writeHunkMap();
+      }
 
-      String x = diff().generateHunkDisplay(file_ent, h, horizontal_offset);
-      System.out.println(x);
+      String frame = null;
+      String message = null;
+      // The unreviewed hunks that make the same change as this one (if there are others),
+      // and those of this hunk's class (if it has one), which c)accepts; since finding them
+      // examines every hunk, it's put off until this hunk is displayed, so typing ahead
+      // through many hunks stays cheap
+      List<HunkCursor> group = null;
+      int hunkClass = diff().hunkClass(cursor.fileIndex(), cursor.hunkIndex());
+      List<HunkCursor> classHunks = null;
+      // Whether this hunk has been displayed (it isn't while the user is typing ahead)
+      boolean hunkShown = false;
 
       while (!quit_flag) {
+        typingAhead = BaseTerminal.hasBufferedInput();
+        if (group == null && !typingAhead) {
+          group = pendingGroup(cursor.fileIndex(), cursor.hunkIndex());
+          classHunks = pendingClassHunks(hunkClass);
+        }
 
         StringBuilder sb = new StringBuilder();
         {
-          String branchName = repo().branchName();
+          String branchName = status().branchName();
           if (!(branchName.equals("main") || branchName.equals("master"))) {
             sb.append(BaseTerminal.RED);
             sb.append("*** Branch: ");
@@ -159,15 +399,59 @@ public class GitDiffOper extends AppOper {
             sb.append(BaseTerminal.RESET);
           }
         }
+        if (mRepoDirectories.size() > 1) {
+          sb.append('[');
+          sb.append(repo().rootDirectory().getName());
+          sb.append("] ");
+        }
+        if (classHunks != null && hunkClass != HunkClassifier.CLASS_NONE) {
+          sb.append("(");
+          sb.append(HunkClassifier.description(hunkClass));
+          sb.append("; c)accepts all ");
+          sb.append(classHunks.size());
+          sb.append(") ");
+        }
+        if (group != null && !group.isEmpty()) {
+          int fileCount = HunkGroups.fileCount(group);
+          sb.append("(\u00d7");
+          if (fileCount > 1) {
+            sb.append(fileCount);
+            sb.append(" files");
+          } else {
+            sb.append(group.size());
+            sb.append(" in this file");
+          }
+          sb.append("; x)acts on all ");
+          sb.append(group.size());
+          sb.append(") ");
+        }
         sb.append(
-            "a)ccept, A)ll in file, e)dit, R)evert, s)kip, S)kipfile, m)ark, q)uit, u)naccept, ag)ain: ");
-        System.out.print(sb.toString());
+            "a)ccept, A)ll in file, e)dit, R)evert, s)kip, S)kipfile, m)ark, q)uit, u)naccept, ag)ain, [ ]page, { }context, /)search, n)ext: ");
+        if (!typingAhead) {
+          if (frame == null)
+            frame = diff().generateHunkDisplay(file_ent, displayHunk, horizontal_offset, vertical_offset);
+          if (verbose())
+            screen().invalidate();
+          screen().render(frame, message, sb.toString());
+          hunkShown = true;
+        }
 
         String cmd = BaseTerminal.readCharAsString();
-
-        pr();
+        message = null;
         boolean valid = true;
 
+        if (!hunkShown && requiresShownHunk(cmd)) {
+          // Don't apply the typed-ahead keys to a hunk the user hasn't seen
+          BaseTerminal.discardBufferedInput();
+          message = "Typed-ahead keys were discarded; check this hunk before using " + quote(cmd);
+          continue;
+        }
+
+        if (rangeMode && modifiesWorktree(cmd)) {
+          message = RANGE_MODE_MESSAGE;
+          continue;
+        }
+
         switch (cmd) {
         case "q":
           quit_flag = true;
@@ -180,13 +464,74 @@ public class GitDiffOper extends AppOper {
           horizontal_offset = Math.min(horizontal_offset + scroll_amount, 250);
           reset_scroll = false;
           break;
+        case "[":
+          vertical_offset = Math.max(0, vertical_offset - diff().viewportRowCount());
+          reset_scroll = false;
+          break;
+        case "]": {
+          int maxOffset = Math.max(0, diff().hunkRowCount(displayHunk) - diff().viewportRowCount());
+          vertical_offset = Math.min(vertical_offset + diff().viewportRowCount(), maxOffset);
+          reset_scroll = false;
+        }
+          break;
+        case "{":
+          context_above += CONTEXT_STEP;
+          vertical_offset = 0;
+          reset_scroll = false;
+          break;
+        case "}":
+          context_below += CONTEXT_STEP;
+          reset_scroll = false;
+          break;
         case "a":
-          setHunkStatus(hunk_hash, HUNK_ACCEPTED);
+          putHunkStatus(file_ent, hunk_hash, HUNK_ACCEPTED);
           break;
         case "A":
-          setHunkStatus(hunk_hash, HUNK_ACCEPTED);
+          putHunkStatus(file_ent, hunk_hash, HUNK_ACCEPTED);
           accept_file_index = cursor.fileIndex();
           break;
+        case "c":
+          if (hunkClass == HunkClassifier.CLASS_NONE) {
+            message = "This hunk isn't whitespace-only, import reordering, or comment-only";
+            valid = false;
+            break;
+          }
+          acceptHunkClass(hunkClass, classHunks);
+          break;
+        case "x": {
+          if (group.isEmpty()) {
+            message = "No other unreviewed hunks make the same change";
+            valid = false;
+            break;
+          }
+          if (frame == null)
+            frame = diff().generateHunkDisplay(file_ent, displayHunk, horizontal_offset, vertical_offset);
+          screen().render(frame, null, "All " + group.size() + " hunks in " + HunkGroups.fileCount(group)
+              + " files: a)ccept, s)kip, R)evert (any other key cancels): ");
+          switch (BaseTerminal.readCharAsString()) {
+          case "a":
+            putHunkStatuses(group, HUNK_ACCEPTED);
+            break;
+          case "s":
+            putHunkStatuses(group, HUNK_SKIPPED);
+            break;
+          case "R":
+            if (rangeMode) {
+              message = RANGE_MODE_MESSAGE;
+              valid = false;
+              break;
+            }
+            // Don't modify the worktree until the decisions made so far are safely written
+            flushHunkMap();
+            revertHunks(group);
+            discardGitDiff();
+            break;
+          default:
+            valid = false;
+            break;
+          }
+        }
+          break;
         case "u": {
           long cursorHash = unaccept();
           discardGitDiff();
@@ -195,55 +540,81 @@ public class GitDiffOper extends AppOper {
           break;
         case "e": {
           if (file_ent.state() == FileState.DELETED) {
-            pr("File was deleted! Try reverting it first.");
+            message = "File was deleted! Try reverting it first.";
             valid = false;
           } else {
-            int lineNumber = h.r2Begin();
+            int lineNumber = h.header().r2Begin();
             File absFilePath = repo().absoluteFile(file_ent.path());
-            SystemUtil.runUnchecked(() -> {
-              Process p = Runtime.getRuntime().exec("/bin/bash");
-              OutputStream stdin = p.getOutputStream();
-              PrintWriter pw = new PrintWriter(stdin);
-              pw.println("vi +" + lineNumber + " " + absFilePath + " < /dev/tty > /dev/tty");
-              pw.close();
-              p.waitFor();
-            });
-            discardGitDiff();
+            String before = fileSnapshot(absFilePath);
+            edit(absFilePath, lineNumber);
+            screen().invalidate();
+            if (!fileSnapshot(absFilePath).equals(before))
+              diff().rediffFile(cursor.fileIndex());
           }
         }
           break;
         case "R":
-          revert(file_ent, h);
+          // Don't modify the worktree until the decisions made so far are safely written
+          flushHunkMap();
+          revert(file_ent, h.toHunk());
           discardGitDiff();
           break;
         case "g":
           // (just display the results and repeat)
           break;
+        case "/": {
+          if (frame == null)
+            frame = diff().generateHunkDisplay(file_ent, displayHunk, horizontal_offset, vertical_offset);
+          String query = readLine(frame, null, "Search: ");
+          if (nullOrEmpty(query))
+            break;
+          mSearchQuery = query;
+          if (!findNextMatch(cursor)) {
+            message = "No unreviewed hunks match: " + quote(mSearchQuery);
+            valid = false;
+          }
+        }
+          break;
+        case "n":
+          if (mSearchQuery == null) {
+            message = "No search has been made; use / to search";
+            valid = false;
+          } else if (!findNextMatch(cursor)) {
+            message = "No unreviewed hunks match: " + quote(mSearchQuery);
+            valid = false;
+          }
+          break;
         case "s":
-          setHunkStatus(hunk_hash, HUNK_SKIPPED);
+          putHunkStatus(file_ent, hunk_hash, HUNK_SKIPPED);
           break;
         case "S":
-          setHunkStatus(hunk_hash, HUNK_SKIPPED);
+          putHunkStatus(file_ent, hunk_hash, HUNK_SKIPPED);
           skip_file_index = cursor.fileIndex();
           break;
         case "m":
           if (file_ent.state() == FileState.DELETED) {
-            pr("File was deleted! Try reverting it first.");
+            message = "File was deleted! Try reverting it first.";
             valid = false;
             break;
           }
-          insertMark(file_ent, h);
+          flushHunkMap();
+          insertMark(file_ent, h.header());
           discardGitDiff();
           break;
         default:
           valid = false;
-          pr("Invalid choice!");
+          message = "Invalid choice!";
           break;
         }
         if (valid)
           break;
       }
     }
+    pr();
+
+    mQuitFlag = quit_flag;
+    saveCheckpoint();
+    writeHunkMap();
 
     // Report summary of accepted, skipped changes
     {
@@ -251,10 +622,16 @@ public class GitDiffOper extends AppOper {
       int skippedCount = 0;
       int changeCount = 0;
       int entryCount = diff().fileEntries().size();
-      for (FileEntry ent : diff().fileEntries()) {
-        for (Hunk h : ent.hunks()) {
+      for (int fi = 0; fi < entryCount; fi++) {
+        int hunkCount = diff().hunks(fi).size();
+        if (checkpoint().reviewed(fi)) {
+          changeCount += hunkCount;
+          acceptCount += hunkCount;
+          continue;
+        }
+        for (int hi = 0; hi < hunkCount; hi++) {
           changeCount++;
-          int status = getHunkStatus(calculateHash(ent, h));
+          int status = getHunkStatus(diff().hunkFingerprint(fi, hi));
           switch (status) {
           case HUNK_ACCEPTED:
             acceptCount++;
@@ -265,6 +642,9 @@ public class GitDiffOper extends AppOper {
           }
         }
       }
+      int collapsedCount = diff().collapsedFiles().size();
+      if (collapsedCount != 0)
+        pr("...collapsed files: " + collapsedCount);
       if (changeCount == 0 && entryCount == 0)
         pr("...no changes");
       else if (changeCount != 0)
@@ -272,36 +652,498 @@ public class GitDiffOper extends AppOper {
       else
         pr("...changes:", entryCount);
     }
-    reportUnusual();
+  }
+
+  /**
+   * Navigate the directories containing changes, diffing a directory's subtree
+   * only when the user chooses to review it
+   */
+  private void reviewTree() {
+    DirectorySummary summary = new DirectorySummary(repo().rootDirectory(), pastCommitName());
+    summary.setVerbose(verbose());
+    if (summary.root().fileCount() == 0) {
+      pr("...no changes");
+      return;
+    }
+    DirectorySummary.Node node = summary.root();
+    String message = null;
+    while (true) {
+      List<DirectorySummary.Node> children = node.children();
+      StringBuilder sb = new StringBuilder();
+      sb.append(node);
+      sb.append("\n\n");
+      for (int i = 0; i < children.size(); i++) {
+        DirectorySummary.Node child = children.get(i);
+        sb.append(String.format("%4d) %-40s %6d files  +%d -%d\n", i + 1, child.name() + "/", child.fileCount(),
+            child.added(), child.deleted()));
+      }
+      if (node.localFileCount() != 0)
+        sb.append(String.format("      (%d files within this directory)\n", node.localFileCount()));
+
+      String input = readLine(sb.toString(), message,
+          "number) enter, r)eview this directory, u)p, q)uit: ");
+      message = null;
+      if (input == null || input.equals("q")) {
+        mQuitFlag = true;
+        break;
+      }
+      if (input.equals("u")) {
+        if (!node.path().isEmpty())
+          node = summary.node(DirectorySummary.parent(node.path()));
+        continue;
+      }
+      if (input.equals("r")) {
+        reviewSubtree(node, null);
+        continue;
+      }
+      int choice = -1;
+      try {
+        choice = Integer.parseInt(input) - 1;
+      } catch (NumberFormatException e) {
+      }
+      if (choice < 0 || choice >= children.size()) {
+        message = "Invalid choice!";
+        continue;
+      }
+      DirectorySummary.Node child = children.get(choice);
+      if (child.children().isEmpty()) {
+        // There's nothing to navigate to within it, so review it
+        reviewSubtree(child, (choice + 1 < children.size()) ? children.get(choice + 1) : null);
+      } else
+        node = child;
+    }
+    pr();
+  }
+
+  /**
+   * Review the hunks within a directory, while diffing another (if not null)
+   * in the background
+   */
+  private void reviewSubtree(DirectorySummary.Node node, DirectorySummary.Node next) {
+    mSubtree = node.path();
+    mGitDiff = null;
+    mCheckpoint = null;
+    diff();
+    // Other subtrees haven't been seen, so the store may still have legacy keys afterward
+    if (hunkStore().hasLegacyKeys())
+      migrateHunkKeys(false);
+    if (next != null)
+      subtreeDiff(next.path());
+    saveBackups();
+    reviewDiff();
+    // Quitting the review of a subtree returns to the directories
+    mQuitFlag = false;
+    screen().invalidate();
+  }
+
+  /**
+   * Get the (possibly not yet finished) diff of a subtree, starting it if
+   * necessary; the most recently used are cached
+   */
+  private Future<GitDiff> subtreeDiff(String path) {
+    if (mSubtreeDiffs == null)
+      mSubtreeDiffs = new LinkedHashMap<String, Future<GitDiff>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Future<GitDiff>> eldest) {
+          return size() > MAX_CACHED_SUBTREES;
+        }
+      };
+    Future<GitDiff> f = mSubtreeDiffs.get(path);
+    if (f == null) {
+      if (mTreeExecutor == null)
+        mTreeExecutor = Executors.newSingleThreadExecutor(r -> {
+          Thread t = new Thread(r, "gitdiff-subtree");
+          t.setDaemon(true);
+          return t;
+        });
+      File repoDir = mRepoDir;
+      // (the worker gets its own copy, since the UI thread may add to the set)
+      Set<String> expandedPaths = new HashSet<>(mExpandedPaths);
+      f = mTreeExecutor.submit(() -> {
+        GitDiff d = newGitDiff(repoDir, new GitRepo(repoDir), expandedPaths).withSubtree(path);
+        d.fileEntries();
+        return d;
+      });
+      mSubtreeDiffs.put(path, f);
+    }
+    return f;
+  }
+
+  private static final int MAX_CACHED_SUBTREES = 4;
+
+  // Number of lines of context added by each expand context command
+  private static final int CONTEXT_STEP = 10;
+
+  /**
+   * Edit a file, using the editor specified by $VISUAL or $EDITOR (or vi)
+   */
+  private void edit(File file, int lineNumber) {
+    String editor = System.getenv("VISUAL");
+    if (nullOrEmpty(editor))
+      editor = System.getenv("EDITOR");
+    if (nullOrEmpty(editor))
+      editor = "vi";
+    List<String> args = arrayList();
+    for (String arg : editor.trim().split("\\s+"))
+      args.add(arg);
+    args.add("+" + lineNumber);
+    args.add(file.toString());
+    log("editing:", args);
+    BaseTerminal.runInteractive(() -> SystemUtil.runUnchecked(() -> {
+      new ProcessBuilder(args).inheritIO().start().waitFor();
+    }));
+  }
+
+  /**
+   * Get a string describing the size, modification time and content hash of a
+   * file, to detect whether it has changed
+   */
+  private static String fileSnapshot(File file) {
+    if (!file.exists())
+      return "(missing)";
+    CRC32 crc = new CRC32();
+    try {
+      crc.update(java.nio.file.Files.readAllBytes(file.toPath()));
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+    return file.length() + ":" + file.lastModified() + ":" + crc.getValue();
+  }
+
+  /**
+   * Accept every unreviewed hunk of a particular class, with a single write of
+   * the hunk state
+   */
+  private void acceptHunkClass(int hunkClass, List<HunkCursor> classHunks) {
+    putHunkStatuses(classHunks, HUNK_ACCEPTED);
+    log("accepted", classHunks.size(), HunkClassifier.description(hunkClass), "hunks");
+  }
+
+  /**
+   * Get the unreviewed hunks of a particular class (none, if it is CLASS_NONE)
+   */
+  private List<HunkCursor> pendingClassHunks(int hunkClass) {
+    List<HunkCursor> pending = arrayList();
+    if (hunkClass == HunkClassifier.CLASS_NONE)
+      return pending;
+    int entryCount = diff().fileEntries().size();
+    for (int fi = 0; fi < entryCount; fi++) {
+      // (files known to have been reviewed have no unreviewed hunks)
+      if (checkpoint().reviewed(fi))
+        continue;
+      for (int hi = 0; hi < diff().hunks(fi).size(); hi++) {
+        if (diff().hunkClass(fi, hi) == hunkClass
+            && getHunkStatus(diff().hunkFingerprint(fi, hi)) == HUNK_UNKNOWN)
+          pending.add(HunkCursor.newBuilder().fileIndex(fi).hunkIndex(hi).build());
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Determine if a command modifies the worktree
+   */
+  private static boolean modifiesWorktree(String cmd) {
+    switch (cmd) {
+    case "e":
+    case "R":
+    case "m":
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static final String RANGE_MODE_MESSAGE = "The worktree can't be modified when reviewing a range";
+
+  /**
+   * Determine if a command modifies the worktree (or acts upon many hunks), and
+   * so mustn't be applied to a hunk that hasn't been displayed; keypresses
+   * typed ahead are only applied to such hunks if they just accept, skip or
+   * navigate
+   */
+  private static boolean requiresShownHunk(String cmd) {
+    switch (cmd) {
+    case "e":
+    case "R":
+    case "m":
+    case "c":
+    case "x":
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Get the unreviewed hunks that make the same change as a particular hunk
+   * (including it); returns an empty list if no other hunk does
+   */
+  private List<HunkCursor> pendingGroup(int fileIndex, int hunkIndex) {
+    List<HunkCursor> pending = arrayList();
+    HunkGroups groups = diff().hunkGroups();
+    int group = groups.group(fileIndex, hunkIndex);
+    if (group == HunkGroups.NONE)
+      return pending;
+    for (HunkCursor c : groups.members(group)) {
+      // (files known to have been reviewed have no unreviewed hunks)
+      if (checkpoint().reviewed(c.fileIndex()))
+        continue;
+      if (getHunkStatus(diff().hunkFingerprint(c.fileIndex(), c.hunkIndex())) == HUNK_UNKNOWN)
+        pending.add(c);
+    }
+    if (pending.size() < 2)
+      pending.clear();
+    return pending;
+  }
+
+  /**
+   * Set the status of each of a number of hunks, and have the hunk map written
+   */
+  private void putHunkStatuses(List<HunkCursor> hunks, int statusCode) {
+    for (HunkCursor c : hunks) {
+      FileEntry fe = diff().fileEntries().get(c.fileIndex());
+      putHunkStatus(fe, diff().hunkFingerprint(c.fileIndex(), c.hunkIndex()), statusCode);
+    }
+    writeHunkMap();
+    log("set status of", hunks.size(), "hunks to", statusCode);
+  }
+
+  /**
+   * Revert each of a group of hunks. A file's hunks are reverted from last to
+   * first, so the line numbers of those that remain are unaffected
+   */
+  private void revertHunks(List<HunkCursor> group) {
+    List<HunkCursor> sorted = new ArrayList<>(group);
+    sorted.sort((a, b) -> a.fileIndex() != b.fileIndex() ? Integer.compare(a.fileIndex(), b.fileIndex())
+        : Integer.compare(b.hunkIndex(), a.hunkIndex()));
+    Set<String> restoredPaths = hashSet();
+    for (HunkCursor c : sorted) {
+      FileEntry fe = diff().fileEntries().get(c.fileIndex());
+      // (reverting any hunk of a deleted file restores the entire file)
+      if (fe.state() == FileState.DELETED && !restoredPaths.add(fe.origPath()))
+        continue;
+      revert(fe, diff().hunks(c.fileIndex()).get(c.hunkIndex()).toHunk());
+    }
+    log("reverted", group.size(), "identical hunks");
+  }
+
+  /**
+   * Read a line of input, displaying it as it is typed; return null if the
+   * input is cancelled
+   */
+  private String readLine(String frame, String message, String prompt) {
+    StringBuilder query = new StringBuilder();
+    while (true) {
+      screen().render(frame, message, prompt + query);
+      int c = BaseTerminal.readCharacter();
+      switch (c) {
+      case '\r':
+      case '\n':
+        return query.toString();
+      case 27: // escape
+      case 3: // ctrl-c
+        return null;
+      case 8:
+      case 127:
+        if (query.length() != 0)
+          query.setLength(query.length() - 1);
+        break;
+      default:
+        if (c >= ' ')
+          query.append((char) c);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Move the cursor to the next unreviewed hunk (after the current one,
+   * wrapping around to the start) that matches the search query; return false
+   * if there is none
+   */
+  private boolean findNextMatch(HunkCursor.Builder cursor) {
+    List<HunkCursor> matches = diff().searchIndex().search(mSearchQuery);
+    if (matches.isEmpty())
+      return false;
+    // Find the first match following the cursor
+    int start = 0;
+    while (start < matches.size() && compare(matches.get(start), cursor) <= 0)
+      start++;
+    for (int i = 0; i < matches.size(); i++) {
+      HunkCursor match = matches.get((start + i) % matches.size());
+      if (getHunkStatus(diff().hunkFingerprint(match.fileIndex(), match.hunkIndex())) != HUNK_UNKNOWN)
+        continue;
+      cursor.fileIndex(match.fileIndex());
+      cursor.hunkIndex(match.hunkIndex());
+      return true;
+    }
+    return false;
+  }
+
+  private static int compare(HunkCursor a, HunkCursor.Builder b) {
+    if (a.fileIndex() != b.fileIndex())
+      return Integer.compare(a.fileIndex(), b.fileIndex());
+    return Integer.compare(a.hunkIndex(), b.hunkIndex());
+  }
+
+  /**
+   * Present the files that were collapsed by the filter (if any remain) as a
+   * single summary entry. Returns true if the review should continue with any
+   * newly expanded entries
+   */
+  private boolean reviewCollapsedFiles() {
+    List<DiffFilter.CollapsedFile> collapsed = diff().collapsedFiles();
+    if (collapsed.isEmpty() || mCollapsedDeclined)
+      return false;
+    screen().invalidate();
+
+    pr("\n\n\n\n");
+    StringBuilder sb = new StringBuilder();
+    sb.append("Collapsed files (" + collapsed.size() + "):\n");
+    int maxListed = 20;
+    for (int i = 0; i < Math.min(maxListed, collapsed.size()); i++) {
+      sb.append("  ");
+      sb.append(collapsed.get(i));
+      sb.append('\n');
+    }
+    if (collapsed.size() > maxListed)
+      sb.append("  ...and " + (collapsed.size() - maxListed) + " more\n");
+    System.out.println(sb.toString());
+
+    while (true) {
+      System.out.print("e)xpand, a)ccept all, s)kip, q)uit: ");
+      String cmd = BaseTerminal.readCharAsString();
+      pr();
+      switch (cmd) {
+      case "e": {
+        int fi = diff().expandCollapsedFiles();
+        for (; fi < diff().fileEntries().size(); fi++)
+          mExpandedPaths.add(entryPath(diff().fileEntries().get(fi)));
+      }
+        return true;
+      case "a": {
+        int fi = diff().expandCollapsedFiles();
+        for (; fi < diff().fileEntries().size(); fi++) {
+          FileEntry fe = diff().fileEntries().get(fi);
+          mExpandedPaths.add(entryPath(fe));
+          for (int hi = 0; hi < diff().hunks(fi).size(); hi++)
+            putHunkStatus(fe, diff().hunkFingerprint(fi, hi), HUNK_ACCEPTED);
+        }
+        writeHunkMap();
+      }
+        return true;
+      case "s":
+      case "q":
+        mCollapsedDeclined = true;
+        return false;
+      default:
+        pr("Invalid choice!");
+        break;
+      }
+    }
+  }
+
+  private static String entryPath(FileEntry fe) {
+    return GitDiff.entryPath(fe);
+  }
+
+  /**
+   * Write each file and hunk to stdout as a JSON object on its own line, as the
+   * diff is being parsed. Hunks are not retained, so memory use doesn't depend
+   * on the size of the diff
+   */
+  private void export() {
+    PrintWriter out = new PrintWriter(
+        new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+    GitDiff diff = new GitDiff(pastCommitName()).withDirectory(mRepoDir);
+    diff.setVerbose(verbose());
+    diff.parse(new GitDiff.Listener() {
+
+      @Override
+      public void fileHeader(FileEntry fileEntry) {
+        mFingerprint = new HunkFingerprint(entryPath(fileEntry));
+        JSMap m = new JSMap();
+        m.put(EXPORT_KEY_TYPE, "file");
+        if (mRepoDirectories.size() > 1)
+          m.put("repo", repo().rootDirectory().toString());
+        m.put("file", fileEntry.toJson());
+        out.println(m.toString());
+      }
+
+      @Override
+      public void hunk(FileEntry fileEntry, CompactHunk compactHunk) {
+        Hunk hunk = compactHunk.toHunk();
+        long hash = mFingerprint.next(compactHunk);
+        JSMap m = new JSMap();
+        m.put(EXPORT_KEY_TYPE, "hunk");
+        m.put("path", entryPath(fileEntry));
+        m.put("hash", HunkStore.key(hash));
+        m.put("status", exportStatusName(getHunkStatus(hash)));
+        m.put("hunk", hunk.toJson());
+        out.println(m.toString());
+      }
+
+      @Override
+      public void fileEntry(FileEntry fileEntry, List<CompactHunk> hunks) {
+        out.flush();
+      }
+
+      @Override
+      public boolean retainHunks() {
+        return false;
+      }
+
+      private HunkFingerprint mFingerprint;
+    });
+    out.flush();
+  }
+
+  private static final String EXPORT_KEY_TYPE = "type";
+
+  private static String exportStatusName(int status) {
+    switch (status) {
+    case HUNK_ACCEPTED:
+      return "accepted";
+    case HUNK_SKIPPED:
+      return "skipped";
+    default:
+      return "pending";
+    }
   }
 
   private void reportUnusual() {
-    if (!repo().untrackedFiles().isEmpty()) {
+    if (!status().untrackedFiles().isEmpty()) {
       pr();
       pr("*** Untracked files exist:");
-      printFiles(repo().untrackedFiles());
+      printFiles(status().untrackedFiles());
     }
-    if (!repo().unmergedFiles().isEmpty()) {
+    if (!status().unmergedFiles().isEmpty()) {
       pr();
       pr("*** Merge conflicts exist:");
-      printFiles(repo().unmergedFiles());
+      printFiles(status().unmergedFiles());
     }
   }
 
-  private void printFiles(List<FileEntry> entries) {
-    for (FileEntry e : entries)
-      pr("  ", repo().fileRelativeToDirectory(e.path(), null));
+  private void printFiles(List<String> paths) {
+    for (String path : paths)
+      pr("  ", repo().fileRelativeToDirectory(path, null));
+  }
+
+  /**
+   * Get the snapshot of the repository's status; it is read again only after
+   * the worktree may have been changed (e.g. by editing or reverting)
+   */
+  private RepoStatus status() {
+    if (mRepoStatus == null)
+      mRepoStatus = RepoStatus.read(repo().rootDirectory(), verbose());
+    return mRepoStatus;
   }
 
   private void setCursorForHash(HunkCursor.Builder cursor, long targetHash) {
-    int fi = INIT_INDEX;
-    for (FileEntry file_ent : diff().fileEntries()) {
-      fi++;
-      int hi = INIT_INDEX;
-      for (Hunk h : file_ent.hunks()) {
-        hi++;
-        long hunk_hash = calculateHash(file_ent, h);
-        if (hunk_hash == targetHash) {
+    for (int fi = 0; fi < diff().fileEntries().size(); fi++) {
+      for (int hi = 0; hi < diff().hunks(fi).size(); hi++) {
+        if (diff().hunkFingerprint(fi, hi) == targetHash) {
           cursor.fileIndex(fi).hunkIndex(hi);
           return;
         }
@@ -309,7 +1151,11 @@ public class GitDiffOper extends AppOper {
     }
   }
 
-  private long calculateHash(FileEntry file_ent, Hunk h) {
+  /**
+   * Calculate the hash that identified a hunk in earlier versions of the hunk
+   * state; it depends upon the hunk's position within the file
+   */
+  private long legacyHash(FileEntry file_ent, Hunk h) {
     String hstr = file_ent.path() + h.toJson().toString();
     mCRC.reset();
     mCRC.update(DataUtil.toByteArray(hstr));
@@ -323,58 +1169,141 @@ public class GitDiffOper extends AppOper {
   private long unaccept() {
     long mostRecentTimestamp = 0;
     long mostRecentHunkHash = 0;
+    int mostRecentFileIndex = 0;
 
     long outHash = 0;
 
-    for (FileEntry fe : diff().fileEntries()) {
-      for (Hunk h : fe.hunks()) {
-        long hash = calculateHash(fe, h);
+    for (int fi = 0; fi < diff().fileEntries().size(); fi++) {
+      for (int hi = 0; hi < diff().hunks(fi).size(); hi++) {
+        long hash = diff().hunkFingerprint(fi, hi);
         if (getHunkStatus(hash) != HUNK_ACCEPTED)
           continue;
         long hunkTimestamp = getHunkTimestamp(hash);
         if (mostRecentTimestamp < hunkTimestamp) {
           mostRecentTimestamp = hunkTimestamp;
           mostRecentHunkHash = hash;
+          mostRecentFileIndex = fi;
           outHash = hash;
         }
       }
     }
     if (mostRecentHunkHash != 0) {
-      hunkMap().remove(hunkKey(mostRecentHunkHash));
+      hunkStore().remove(mostRecentHunkHash);
+      checkpoint().clearReviewed(mostRecentFileIndex);
+      saveCheckpoint();
       writeHunkMap();
     }
     return outHash;
   }
 
   /**
-   * Remove any skipped flags (but not ones that have already been accepted?)
+   * Move the state of the current diff's hunks from the legacy hashes used by
+   * earlier versions to their fingerprints. If complete, the store is marked as
+   * migrated; entries that weren't moved will be evicted as stale
+   */
+  private void migrateHunkKeys(boolean complete) {
+    int count = 0;
+    for (int fi = 0; fi < diff().fileEntries().size(); fi++) {
+      FileEntry fe = diff().fileEntries().get(fi);
+      List<CompactHunk> fileHunks = diff().hunks(fi);
+      for (int hi = 0; hi < fileHunks.size(); hi++)
+        if (hunkStore().rekey(legacyHash(fe, fileHunks.get(hi).toHunk()), diff().hunkFingerprint(fi, hi)))
+          count++;
+    }
+    if (complete)
+      hunkStore().setLegacyKeysMigrated();
+    log("migrated", count, "hunk entries to fingerprints");
+  }
+
+  /**
+   * Start a new generation of the hunk state, and mark the hunks of the current
+   * diff as seen; stale entries are evicted in the background
    */
-  private void remove_skipped(boolean forget_all) {
+  private void startHunkGeneration(boolean forget_all) {
     if (files().missingWithDryRunActive(mBackupRootDir))
       return;
 
-    // Determine the set of keys corresponding to the current git state, so we can 
-    // remove any stale ones
-    Set<String> validKeys = hashSet();
-    for (FileEntry fe : diff().fileEntries()) {
-      for (Hunk h : fe.hunks()) {
-        validKeys.add(hunkKey(calculateHash(fe, h)));
+    hunkStore().startGeneration(forget_all);
+    if (hunkStore().hasLegacyKeys())
+      migrateHunkKeys(true);
+    // Files that were collapsed weren't parsed, and files known to have been reviewed
+    // aren't examined, so their hunks aren't seen
+    Set<String> retainedPaths = hashSet();
+    for (DiffFilter.CollapsedFile cf : diff().collapsedFiles())
+      retainedPaths.add(cf.path());
+    for (int fi = 0; fi < diff().fileEntries().size(); fi++) {
+      if (checkpoint().reviewed(fi)) {
+        retainedPaths.add(entryPath(diff().fileEntries().get(fi)));
+        continue;
       }
+      for (int hi = 0; hi < diff().hunks(fi).size(); hi++)
+        getHunkStatus(diff().hunkFingerprint(fi, hi));
     }
+    writeHunkMap();
+    hunkStore().startCompaction(retainedPaths);
+  }
 
-    for (String key : hunkMap().keySet()) {
-      JSMap m = hunkMap().getMap(key);
-      int state = m.getInt(HUNK_KEY_STATUS);
-      if (forget_all || state < HUNK_ACCEPTED || !validKeys.contains(key)) {
-        hunkMap().remove(key);
-      }
+  /**
+   * Get the checkpoint of the current diff's review, restoring the progress
+   * saved by an earlier session (or before the diff was last discarded)
+   */
+  private ReviewCheckpoint checkpoint() {
+    if (mCheckpoint == null) {
+      boolean rangeMode = cmdLineArgs().get(CLARG_RANGE);
+      // In range mode, the commit name is already a range of commit ids
+      String base = rangeMode ? pastCommitName() : commitId(repo(), pastCommitName());
+      mCheckpoint = new ReviewCheckpoint(diff(), repo().rootDirectory(), base, !rangeMode);
+      mCheckpoint.setVerbose(verbose());
+      mCheckpoint.restore(hunkStore().checkpoint(checkpointScope()));
     }
-    writeHunkMap();
+    return mCheckpoint;
+  }
+
+  private String checkpointScope() {
+    return mSubtree == null ? "" : mSubtree;
+  }
+
+  /**
+   * Store the checkpoint (if there is one) with the hunk state, without
+   * writing it
+   */
+  private void saveCheckpoint() {
+    if (mCheckpoint == null || files().missingWithDryRunActive(mBackupRootDir))
+      return;
+    hunkStore().putCheckpoint(checkpointScope(), mCheckpoint.toJson());
+  }
+
+  /**
+   * Count the hunks of a file that have a particular status
+   */
+  private int countHunks(int fileIndex, int status) {
+    int count = 0;
+    for (int hi = 0; hi < diff().hunks(fileIndex).size(); hi++)
+      if (getHunkStatus(diff().hunkFingerprint(fileIndex, hi)) == status)
+        count++;
+    return count;
+  }
+
+  /**
+   * Determine the number of hunks of a file, preceding a particular one, that
+   * have all been accepted
+   */
+  private int acceptedPrefix(int fileIndex, int hunkIndex) {
+    int count = 0;
+    while (count < hunkIndex && getHunkStatus(diff().hunkFingerprint(fileIndex, count)) == HUNK_ACCEPTED)
+      count++;
+    return count;
+  }
+
+  private ScreenRenderer screen() {
+    if (mScreen == null)
+      mScreen = new ScreenRenderer();
+    return mScreen;
   }
 
   private GitRepo repo() {
     if (mGitRepo == null) {
-      mGitRepo = new GitRepo(Files.currentDirectory());
+      mGitRepo = new GitRepo(mRepoDir);
     }
     return mGitRepo;
   }
@@ -382,18 +1311,103 @@ public class GitDiffOper extends AppOper {
   private GitDiff diff() {
     if (mGitDiff == null) {
       mGitRepo = null;
-      String rev_name = repo().past_commit_name(-1 - cmdLineArgs().getInt(CLARG_DISTANCE));
-      mGitDiff = new GitDiff(rev_name);
-      mGitDiff.setVerbose(verbose());
+      // (a prefetched diff is of the whole repository, so it doesn't serve a subtree)
+      if (mSubtree != null) {
+        try {
+          mGitDiff = subtreeDiff(mSubtree).get();
+        } catch (InterruptedException | ExecutionException e) {
+          throw asRuntimeException(e);
+        }
+      } else if (mPrefetchedDiff != null) {
+        Future<GitDiff> f = mPrefetchedDiff;
+        mPrefetchedDiff = null;
+        try {
+          mGitDiff = f.get();
+        } catch (InterruptedException | ExecutionException e) {
+          throw asRuntimeException(e);
+        }
+      } else
+        mGitDiff = newGitDiff(mRepoDir, repo(), mExpandedPaths);
     }
     return mGitDiff;
   }
 
+  /**
+   * Construct a diff of a repository; the filter (if any) doesn't collapse the
+   * files with the given paths, which the user has expanded. This is called by
+   * worker threads, so it mustn't read fields that the UI thread modifies
+   */
+  private GitDiff newGitDiff(File repoDir, GitRepo repo, Set<String> expandedPaths) {
+    GitDiff d = new GitDiff(pastCommitName(repo)).withDirectory(repoDir);
+    d.setVerbose(verbose());
+    boolean useCache = !cmdLineArgs().get(CLARG_NO_CACHE) && !files().dryRun();
+    if (cmdLineArgs().get(CLARG_BOUNDED_MEMORY))
+      d.withBoundedMemory();
+    if (cmdLineArgs().get(CLARG_RANGE)) {
+      if (useCache)
+        d.withRangeCache(new File(new File(backupRootDir(repo), RANGE_CACHE_DIR_NAME),
+            d.commitName().replace("..", "_") + ".bin"));
+    } else if (useCache && !cmdLineArgs().get(CLARG_BOUNDED_MEMORY)) {
+      // The parse cache is held in memory, so it isn't used in bounded memory mode
+      d.withCache(new File(backupRootDir(repo), PARSE_CACHE_NAME), repo.rootDirectory());
+    }
+    if (cmdLineArgs().get(CLARG_COLLAPSE)) {
+      DiffFilter filter = new DiffFilter()//
+          .withMaxLines(cmdLineArgs().getInt(CLARG_COLLAPSE_LINES))//
+          .withMaxBytes(cmdLineArgs().getInt(CLARG_COLLAPSE_BYTES))//
+          .withExpandedPaths(expandedPaths);
+      filter.setVerbose(verbose());
+      d.withFilter(filter, repo.rootDirectory());
+    }
+    return d;
+  }
+
+  private String pastCommitName() {
+    return pastCommitName(repo());
+  }
+
+  /**
+   * Get the commit to diff against; or, in range mode, the range between the
+   * ids of that commit and HEAD (so that the diff doesn't depend on the
+   * worktree, and never changes)
+   */
+  private String pastCommitName(GitRepo repo) {
+    String name = repo.past_commit_name(-1 - cmdLineArgs().getInt(CLARG_DISTANCE));
+    if (!cmdLineArgs().get(CLARG_RANGE))
+      return name;
+    synchronized (mCommitRanges) {
+      File key = repo.rootDirectory();
+      String range = mCommitRanges.get(key);
+      if (range == null) {
+        range = commitId(repo, name) + ".." + commitId(repo, "HEAD");
+        mCommitRanges.put(key, range);
+      }
+      return range;
+    }
+  }
+
+  private String commitId(GitRepo repo, String commitName) {
+    return new SystemCall().withVerbose(verbose())//
+        .arg("git", "-C", repo.rootDirectory(), "rev-parse", "--verify", commitName + "^{commit}")//
+        .assertSuccess().systemOut().trim();
+  }
+
   private void discardGitDiff() {
+    // The checkpoint is restored (and checked against the new diff) when next needed
+    saveCheckpoint();
+    mCheckpoint = null;
     mGitDiff = null;
+    mRepoStatus = null;
+    if (mSubtreeDiffs != null)
+      mSubtreeDiffs.remove(mSubtree);
   }
 
   private void saveBackups() {
+    // (in range mode, the worktree isn't modified, and its files needn't match the diff)
+    if (cmdLineArgs().get(CLARG_RANGE)) {
+      mBackupPruner.start();
+      return;
+    }
     for (FileEntry fe : diff().fileEntries()) {
       if (fe.state() == FileState.DELETED || fe.state() == FileState.ADDED)
         continue;
@@ -405,8 +1419,11 @@ public class GitDiffOper extends AppOper {
       }
       checkState(!fe.path().isEmpty(), "Empty path:", INDENT, fe);
       File relativeToRepo = repo().absoluteFile(fe.path());
-      mBackups.makeBackup(relativeToRepo);
+      File backupFile = mBackups.makeBackup(relativeToRepo);
+      if (backupFile != null)
+        mBackupPruner.recordBackup(fe.path(), backupFile);
     }
+    mBackupPruner.start();
   }
 
   private static String dump(List<String> strs) {
@@ -461,7 +1478,7 @@ public class GitDiffOper extends AppOper {
     if (fileEntry.state() == FileState.DELETED) {
       File filePath = repo().absoluteFile(fileEntry.origPath());
       new SystemCall().withVerbose(verbose())//
-          .arg("git", "checkout", "--", filePath)//
+          .arg("git", "-C", repo().rootDirectory(), "checkout", "--", filePath)//
           .assertSuccess();
       return;
     }
@@ -502,69 +1519,83 @@ public class GitDiffOper extends AppOper {
   // Hunk state map
   // ------------------------------------------------------------------
 
-  private JSMap hunkMap() {
-    if (mHunkMap == null)
-      mHunkMap = JSMap.fromFileIfExists(hunkFile());
-    return mHunkMap;
-  }
-
-  private static String hunkKey(long hashCode) {
-    return "" + hashCode;
-  }
-
-  private JSMap hunkMapEntry(long hashcode) {
-    return hunkMap().createMapIfMissing(hunkKey(hashcode));
+  private HunkStore hunkStore() {
+    if (mHunkStore == null) {
+      mHunkStore = new HunkStore(files(), new File(mBackupRootDir, HUNK_STORE_NAME));
+      mHunkStore.setVerbose(verbose());
+      mHunkStore.startFlusher(HUNK_FLUSH_INTERVAL_MS);
+    }
+    return mHunkStore;
   }
 
   private long getHunkTimestamp(long hashcode) {
-    return hunkMapEntry(hashcode).getLong(HUNK_KEY_TIMESTAMP);
+    return hunkStore().timestamp(hashcode);
   }
 
-  private static final String HUNK_KEY_STATUS = "s";
-  private static final String HUNK_KEY_TIMESTAMP = "t";
-
   private int getHunkStatus(long hashcode) {
-    String key = hunkKey(hashcode);
-    JSMap m = hunkMap().optJSMap(key);
-    if (m == null)
-      return HUNK_UNKNOWN;
-    return m.getInt(HUNK_KEY_STATUS);
+    return hunkStore().status(hashcode);
   }
 
-  private void setHunkStatus(long hunkHashCode, int statusCode) {
-    String key = hunkKey(hunkHashCode);
-    if (statusCode == HUNK_UNKNOWN)
-      hunkMap().remove(key);
-    else {
-      JSMap entry = hunkMap().createMapIfMissing(hunkKey(hunkHashCode));
-      entry//
-          .put(HUNK_KEY_STATUS, statusCode)//
-          .put(HUNK_KEY_TIMESTAMP, System.currentTimeMillis())//
-      ;
-    }
-    writeHunkMap();
+  /**
+   * Set a hunk's status without writing the hunk map
+   */
+  private void putHunkStatus(FileEntry fileEntry, long hunkHashCode, int statusCode) {
+    hunkStore().put(hunkHashCode, statusCode, entryPath(fileEntry));
   }
 
+  /**
+   * Have the hunk state written by the background flusher
+   */
   private void writeHunkMap() {
-    files().writePretty(hunkFile(), hunkMap());
+    hunkStore().requestWrite();
   }
 
-  private File hunkFile() {
-    return new File(mBackupRootDir, "hunks.json");
+  /**
+   * Write the hunk state now, waiting until it is durable
+   */
+  private void flushHunkMap() {
+    hunkStore().write();
   }
 
   // Hunk status codes
   //
-  private static final int HUNK_UNKNOWN = 0;
-  private static final int HUNK_SKIPPED = 1;
-  private static final int HUNK_ACCEPTED = 2;
+  private static final int HUNK_UNKNOWN = HunkStore.STATUS_UNKNOWN;
+  private static final int HUNK_SKIPPED = HunkStore.STATUS_SKIPPED;
+  private static final int HUNK_ACCEPTED = HunkStore.STATUS_ACCEPTED;
+
+  // Maximum time that a hunk decision remains unwritten
+  private static final long HUNK_FLUSH_INTERVAL_MS = 2000;
+
+  // Files within the backup directory that aren't backups
+  //
+  private static final String HUNK_STORE_NAME = "hunks.json";
+  private static final String PARSE_CACHE_NAME = "parse_cache.bin";
+  private static final String RANGE_CACHE_DIR_NAME = "ranges";
 
   // ------------------------------------------------------------------
 
   private GitDiff mGitDiff;
   private GitRepo mGitRepo;
   private BackupManager mBackups;
+  private BackupPruner mBackupPruner;
+  // Commit ranges reviewed in range mode, by repository root directory
+  private final Map<File, String> mCommitRanges = hashMap();
   private File mBackupRootDir;
   private CRC32 mCRC = new CRC32();
-  private JSMap mHunkMap;
+  private HunkStore mHunkStore;
+  private List<File> mRepoDirectories;
+  private File mRepoDir;
+  private ExecutorService mDiffExecutor;
+  private Future<GitDiff> mPrefetchedDiff;
+  private boolean mQuitFlag;
+  private ScreenRenderer mScreen;
+  private RepoStatus mRepoStatus;
+  private ReviewCheckpoint mCheckpoint;
+  // The directory being reviewed in tree mode, or null
+  private String mSubtree;
+  private Map<String, Future<GitDiff>> mSubtreeDiffs;
+  private ExecutorService mTreeExecutor;
+  private String mSearchQuery;
+  private Set<String> mExpandedPaths = hashSet();
+  private boolean mCollapsedDeclined;
 }
@@ -0,0 +1,294 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import gitutil.gen.FileEntry;
+
+/**
+ * Identifies hunks whose changes are trivial: those that only change
+ * whitespace, only reorder import statements, or only change comments.
+ *
+ * A file's comment syntax, and whether its indentation is significant, are
+ * determined by its name (see Syntax). The hunks of a file whose syntax isn't
+ * known are never classified as comment-only
+ */
+public final class HunkClassifier {
+
+  public static final int CLASS_NONE = 0;
+  public static final int CLASS_WHITESPACE = 1;
+  public static final int CLASS_IMPORTS = 2;
+  public static final int CLASS_COMMENTS = 3;
+
+  public static final int CLASS_TOTAL = 4;
+
+  /**
+   * Get a description of a class, e.g. "whitespace-only"
+   */
+  public static String description(int hunkClass) {
+    return DESCRIPTIONS[hunkClass];
+  }
+
+  private static final String[] DESCRIPTIONS = { "unclassified", "whitespace-only", "import reordering",
+      "comment-only" };
+
+  /**
+   * Classify every hunk of every file (in parallel); returns an array of
+   * classes for each file
+   */
+  public static List<int[]> classify(List<FileEntry> fileEntries, List<List<CompactHunk>> hunks) {
+    int[][] classes = new int[hunks.size()][];
+    IntStream.range(0, hunks.size()).parallel().forEach(fi -> {
+      Syntax syntax = Syntax.forPath(GitDiff.entryPath(fileEntries.get(fi)));
+      List<CompactHunk> fileHunks = hunks.get(fi);
+      int[] fileClasses = new int[fileHunks.size()];
+      for (int hi = 0; hi < fileHunks.size(); hi++)
+        fileClasses[hi] = classify(syntax, fileHunks.get(hi));
+      classes[fi] = fileClasses;
+    });
+    List<int[]> result = arrayList();
+    Collections.addAll(result, classes);
+    return result;
+  }
+
+  /**
+   * Classify a hunk of the file with a particular path
+   */
+  public static int classify(String path, CompactHunk hunk) {
+    return classify(Syntax.forPath(path), hunk);
+  }
+
+  private static int classify(Syntax syntax, CompactHunk hunk) {
+    List<String> removedText = arrayList();
+    List<String> addedText = arrayList();
+    List<String> removedLines = arrayList();
+    List<String> addedLines = arrayList();
+    boolean allImports = true;
+    boolean allComments = syntax != null;
+
+    for (int i = 0; i < hunk.lineCount(); i++) {
+      char marker = hunk.marker(i);
+      if (marker != '-' && marker != '+')
+        continue;
+      String line = hunk.line(i).substring(1);
+      String text = line.trim();
+      if (text.isEmpty())
+        continue;
+      (marker == '-' ? removedText : addedText).add(significantText(line, syntax));
+      (marker == '-' ? removedLines : addedLines).add(text);
+      allImports &= isImport(text);
+      if (allComments)
+        allComments = isComment(text, syntax);
+    }
+
+    if (removedText.equals(addedText))
+      return CLASS_WHITESPACE;
+    if (allImports && removedLines.size() == addedLines.size()) {
+      Collections.sort(removedLines);
+      Collections.sort(addedLines);
+      if (removedLines.equals(addedLines))
+        return CLASS_IMPORTS;
+    }
+    if (allComments && commentBlocksUnchanged(hunk, '-', syntax) && commentBlocksUnchanged(hunk, '+', syntax))
+      return CLASS_COMMENTS;
+    return CLASS_NONE;
+  }
+
+  /**
+   * Get the form of a line that a whitespace-only change leaves unchanged.
+   * Whitespace within quotes is kept, as is the indentation if it is
+   * significant (or the syntax is unknown). Elsewhere, a run of whitespace is
+   * reduced to a single space if it separates two word characters or two
+   * operator characters (since removing it might join two tokens, e.g.
+   * 'a - -b' and 'a --b'), and is otherwise dropped
+   */
+  static String significantText(String line, Syntax syntax) {
+    boolean indentation = syntax == null || syntax.mIndentation;
+    int start = 0;
+    int end = line.length();
+    while (end > start && Character.isWhitespace(line.charAt(end - 1)))
+      end--;
+    StringBuilder sb = new StringBuilder();
+    for (; start < end && Character.isWhitespace(line.charAt(start)); start++)
+      if (indentation)
+        sb.append(line.charAt(start));
+
+    char quote = 0;
+    char previous = 0;
+    boolean separated = false;
+    for (int i = start; i < end; i++) {
+      char c = line.charAt(i);
+      if (quote != 0) {
+        sb.append(c);
+        if (c == '\\' && i + 1 < end)
+          sb.append(line.charAt(++i));
+        else if (c == quote) {
+          quote = 0;
+          previous = c;
+        }
+        continue;
+      }
+      if (Character.isWhitespace(c)) {
+        separated = true;
+        continue;
+      }
+      if (separated && previous != 0 && (isWordChar(previous) && isWordChar(c)
+          || isOperatorChar(previous) && isOperatorChar(c)))
+        sb.append(' ');
+      separated = false;
+      sb.append(c);
+      previous = c;
+      if (c == '"' || c == '\'' || c == '`')
+        quote = c;
+    }
+    return sb.toString();
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  private static boolean isOperatorChar(char c) {
+    return !isWordChar(c) && "()[]{},;\"'`".indexOf(c) < 0;
+  }
+
+  /**
+   * Determine if any block comments that a hunk's changed lines (those with a
+   * particular marker) open or close lie entirely within those lines. If not,
+   * the changes alter which of the file's other lines are commented out (e.g.
+   * removing the delimiters of a block that surrounds code)
+   */
+  private static boolean commentBlocksUnchanged(CompactHunk hunk, char changeMarker, Syntax syntax) {
+    if (syntax.mBlockStart == null)
+      return true;
+    boolean inChangedBlock = false;
+    for (int i = 0; i < hunk.lineCount(); i++) {
+      char marker = hunk.marker(i);
+      if (marker != ' ' && marker != changeMarker)
+        continue;
+      if (marker == ' ') {
+        // (a context line within a block opened by a changed line)
+        if (inChangedBlock)
+          return false;
+        continue;
+      }
+      String text = hunk.line(i).substring(1).trim();
+      if (closesBlock(text, syntax)) {
+        if (!inChangedBlock)
+          return false;
+        inChangedBlock = false;
+      }
+      if (opensBlock(text, syntax))
+        inChangedBlock = true;
+    }
+    return !inChangedBlock;
+  }
+
+  /**
+   * Determine if a line opens a block comment that continues on later lines
+   */
+  private static boolean opensBlock(String text, Syntax syntax) {
+    return text.startsWith(syntax.mBlockStart)
+        && text.indexOf(syntax.mBlockEnd, syntax.mBlockStart.length()) < 0;
+  }
+
+  /**
+   * Determine if a line closes a block comment opened on an earlier line
+   */
+  private static boolean closesBlock(String text, Syntax syntax) {
+    return !text.startsWith(syntax.mBlockStart) && text.contains(syntax.mBlockEnd);
+  }
+
+  private static boolean isImport(String text) {
+    for (String prefix : IMPORT_PREFIXES)
+      if (text.startsWith(prefix))
+        return true;
+    return false;
+  }
+
+  private static final String[] IMPORT_PREFIXES = { "import ", "from ", "#include ", "#import ", "using ",
+      "require ", "use " };
+
+  private static boolean isComment(String text, Syntax syntax) {
+    for (String prefix : syntax.mLineComments)
+      if (text.startsWith(prefix))
+        return true;
+    if (syntax.mBlockStart == null)
+      return false;
+    // Nothing may follow the end of a block comment (e.g. '/* x */ doIt();')
+    int end = text.indexOf(syntax.mBlockEnd);
+    if (end >= 0 && end != text.length() - syntax.mBlockEnd.length())
+      return false;
+    if (text.startsWith(syntax.mBlockStart) || text.startsWith(syntax.mBlockEnd))
+      return true;
+    // (the continuation of a '/*' block, e.g. ' * Docs')
+    return syntax.mBlockStart.equals("/*") && (text.equals("*") || text.startsWith("* "));
+  }
+
+  /**
+   * The comment syntax of a language, and whether its indentation is
+   * significant
+   */
+  static final class Syntax {
+
+    private Syntax(String[] lineComments, String blockStart, String blockEnd, boolean indentation) {
+      mLineComments = lineComments;
+      mBlockStart = blockStart;
+      mBlockEnd = blockEnd;
+      mIndentation = indentation;
+    }
+
+    /**
+     * Get the syntax of a file from its name, or null if it isn't known
+     */
+    static Syntax forPath(String path) {
+      String name = path.substring(path.lastIndexOf('/') + 1);
+      Syntax syntax = sByName.get(name);
+      if (syntax == null) {
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0)
+          syntax = sByExtension.get(name.substring(dot + 1).toLowerCase());
+      }
+      return syntax;
+    }
+
+    private static void add(Syntax syntax, String... extensions) {
+      for (String ext : extensions)
+        sByExtension.put(ext, syntax);
+    }
+
+    private final String[] mLineComments;
+    private final String mBlockStart;
+    private final String mBlockEnd;
+    private final boolean mIndentation;
+
+    private static final Map<String, Syntax> sByExtension = hashMap();
+    private static final Map<String, Syntax> sByName = hashMap();
+
+    static {
+      String[] none = {};
+      Syntax c = new Syntax(new String[] { "//" }, "/*", "*/", false);
+      add(c, "java", "c", "h", "cc", "cpp", "cxx", "hpp", "hh", "m", "mm", "cs", "js", "mjs", "cjs", "jsx",
+          "ts", "tsx", "go", "kt", "kts", "swift", "scala", "rs", "dart", "groovy", "gradle", "proto", "php",
+          "scss", "less");
+      add(new Syntax(none, "/*", "*/", false), "css");
+      Syntax hash = new Syntax(new String[] { "#" }, null, null, false);
+      add(hash, "sh", "bash", "zsh", "rb", "pl", "pm", "r", "toml", "cmake", "properties", "conf", "cfg",
+          "ini");
+      Syntax indentedHash = new Syntax(new String[] { "#" }, null, null, true);
+      add(indentedHash, "py", "pyi", "yaml", "yml", "mk", "coffee", "nim");
+      sByName.put("Makefile", indentedHash);
+      sByName.put("Dockerfile", hash);
+      sByName.put("CMakeLists.txt", hash);
+      add(new Syntax(new String[] { "--" }, "/*", "*/", false), "sql");
+      add(new Syntax(new String[] { "--" }, null, null, false), "lua");
+      add(new Syntax(new String[] { "--" }, "{-", "-}", true), "hs");
+      add(new Syntax(none, "<!--", "-->", false), "html", "htm", "xml", "xsd", "svg", "vue", "md",
+          "markdown");
+    }
+  }
+}
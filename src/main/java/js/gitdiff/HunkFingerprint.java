@@ -0,0 +1,118 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calculates fingerprints that identify the hunks of a file independently of
+ * their positions, so that a hunk keeps its identity when lines are added or
+ * removed elsewhere in the file.
+ *
+ * A fingerprint is a 64-bit FNV-1a hash of the file's path and the hunk's
+ * lines (with trailing whitespace removed from its context lines); the line
+ * numbers in its header are ignored. If several hunks within a file have the
+ * same content, each is distinguished by its position among them
+ */
+public final class HunkFingerprint {
+
+  /**
+   * Construct a calculator for the hunks of a file, which must be presented
+   * to next() in order
+   */
+  public HunkFingerprint(String path) {
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    mPathHash = hash(hash(FNV_OFFSET_BASIS, pathBytes, pathBytes.length), 0);
+  }
+
+  /**
+   * Calculate the fingerprints of all of a file's hunks
+   */
+  public static long[] of(String path, List<CompactHunk> hunks) {
+    HunkFingerprint f = new HunkFingerprint(path);
+    long[] result = new long[hunks.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = f.next(hunks.get(i));
+    return result;
+  }
+
+  /**
+   * Calculate the fingerprint of the file's next hunk
+   */
+  public long next(CompactHunk hunk) {
+    long h = mPathHash;
+    byte[] bytes = mLineBytes;
+    for (int i = 0; i < hunk.lineCount(); i++) {
+      int length = hunk.lineLength(i);
+      if (bytes.length < length)
+        bytes = new byte[Math.max(length, bytes.length * 2)];
+      hunk.copyLine(i, bytes);
+      if (length != 0 && bytes[0] == ' ')
+        while (length > 1 && isTrailingWhitespace(bytes[length - 1]))
+          length--;
+      h = hash(hash(h, bytes, length), '\n');
+    }
+    mLineBytes = bytes;
+
+    // Distinguish this hunk from any earlier ones with the same content
+    int occurrence = mOccurrences.getOrDefault(h, 0);
+    mOccurrences.put(h, occurrence + 1);
+    for (int shift = 24; occurrence != 0 && shift >= 0; shift -= 8)
+      h = hash(h, occurrence >>> shift);
+    // (zero is reserved to mean 'no hunk')
+    return h == 0 ? 1 : h;
+  }
+
+  /**
+   * Calculate a hash of a hunk's added and removed lines alone, ignoring its
+   * path, position and context lines, so hunks that make the same change in
+   * different places have the same hash
+   */
+  static long changeHash(CompactHunk hunk) {
+    long h = FNV_OFFSET_BASIS;
+    byte[] bytes = new byte[256];
+    for (int i = 0; i < hunk.lineCount(); i++) {
+      char marker = hunk.marker(i);
+      if (marker != '+' && marker != '-')
+        continue;
+      int length = hunk.lineLength(i);
+      if (bytes.length < length)
+        bytes = new byte[Math.max(length, bytes.length * 2)];
+      hunk.copyLine(i, bytes);
+      h = hash(hash(h, bytes, length), '\n');
+    }
+    return h;
+  }
+
+  /**
+   * Calculate a 64-bit FNV-1a hash of a string (which is never zero)
+   */
+  static long hashOf(String text) {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    long h = hash(FNV_OFFSET_BASIS, bytes, bytes.length);
+    return h == 0 ? 1 : h;
+  }
+
+  private static boolean isTrailingWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  private static long hash(long h, byte[] bytes, int length) {
+    for (int i = 0; i < length; i++)
+      h = hash(h, bytes[i]);
+    return h;
+  }
+
+  private static long hash(long h, int b) {
+    return (h ^ (b & 0xff)) * FNV_PRIME;
+  }
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final long mPathHash;
+  private final Map<Long, Integer> mOccurrences = hashMap();
+  private byte[] mLineBytes = new byte[256];
+}
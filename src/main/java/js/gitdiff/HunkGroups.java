@@ -0,0 +1,116 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import js.gitdiff.gen.HunkCursor;
+
+/**
+ * Groups the hunks that make identical changes (e.g. the same edit to a
+ * license header, or an import renamed across many files), so a group can be
+ * acted upon at once. Hunks are grouped by their added and removed lines
+ * alone (see HunkFingerprint.changeHash()); hunks whose changes are unique
+ * belong to no group
+ */
+public final class HunkGroups {
+
+  public static final int NONE = -1;
+
+  /**
+   * Find the groups among the hunks of every file (hashing the files in
+   * parallel). Only arrays of primitives are kept, with an element for each
+   * hunk (or group), so that the memory used remains small in bounded memory
+   * mode
+   */
+  public HunkGroups(List<List<CompactHunk>> hunks) {
+    long[][] hashes = new long[hunks.size()][];
+    IntStream.range(0, hunks.size()).parallel().forEach(fi -> {
+      List<CompactHunk> fileHunks = hunks.get(fi);
+      long[] fileHashes = new long[fileHunks.size()];
+      for (int hi = 0; hi < fileHunks.size(); hi++)
+        fileHashes[hi] = HunkFingerprint.changeHash(fileHunks.get(hi));
+      hashes[fi] = fileHashes;
+    });
+
+    // Find the hashes that occur more than once; each identifies a group
+    int total = 0;
+    for (long[] fileHashes : hashes)
+      total += fileHashes.length;
+    long[] sorted = new long[total];
+    int n = 0;
+    for (long[] fileHashes : hashes)
+      for (long h : fileHashes)
+        sorted[n++] = h;
+    Arrays.sort(sorted);
+    long[] groupHashes = new long[total / 2];
+    int groupCount = 0;
+    for (int i = 1; i < total; i++)
+      if (sorted[i] == sorted[i - 1] && (groupCount == 0 || groupHashes[groupCount - 1] != sorted[i]))
+        groupHashes[groupCount++] = sorted[i];
+    mGroupHashes = Arrays.copyOf(groupHashes, groupCount);
+
+    mGroups = new int[hashes.length][];
+    mGroupSizes = new int[groupCount];
+    for (int fi = 0; fi < hashes.length; fi++) {
+      int[] fileGroups = new int[hashes[fi].length];
+      for (int hi = 0; hi < fileGroups.length; hi++) {
+        int group = Arrays.binarySearch(mGroupHashes, hashes[fi][hi]);
+        fileGroups[hi] = group < 0 ? NONE : group;
+        if (group >= 0)
+          mGroupSizes[group]++;
+      }
+      mGroups[fi] = fileGroups;
+    }
+  }
+
+  /**
+   * Get the group that a hunk belongs to, or NONE
+   */
+  public int group(int fileIndex, int hunkIndex) {
+    if (fileIndex >= mGroups.length || hunkIndex >= mGroups[fileIndex].length)
+      return NONE;
+    return mGroups[fileIndex][hunkIndex];
+  }
+
+  /**
+   * Get the hunks that belong to a group, ordered by file and hunk
+   */
+  public List<HunkCursor> members(int group) {
+    List<HunkCursor> result = arrayList();
+    for (int fi = 0; fi < mGroups.length && result.size() < mGroupSizes[group]; fi++)
+      for (int hi = 0; hi < mGroups[fi].length; hi++)
+        if (mGroups[fi][hi] == group)
+          result.add(HunkCursor.newBuilder().fileIndex(fi).hunkIndex(hi).build());
+    return result;
+  }
+
+  /**
+   * Get the number of groups
+   */
+  public int groupCount() {
+    return mGroupSizes.length;
+  }
+
+  /**
+   * Count the distinct files that some hunks (ordered by file) belong to
+   */
+  public static int fileCount(List<HunkCursor> hunks) {
+    int count = 0;
+    int previous = -1;
+    for (HunkCursor c : hunks) {
+      if (c.fileIndex() != previous)
+        count++;
+      previous = c.fileIndex();
+    }
+    return count;
+  }
+
+  // Group of each hunk, by file
+  private final int[][] mGroups;
+  // Hash of each group's changes, in ascending order
+  private final long[] mGroupHashes;
+  private final int[] mGroupSizes;
+}
@@ -0,0 +1,284 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import gitutil.gen.FileEntry;
+import gitutil.gen.FileState;
+import js.gitdiff.gen.HunkCursor;
+
+/**
+ * A case-insensitive substring index over the lines and file paths of a diff's
+ * hunks.
+ *
+ * Each hunk is assigned an ordinal, and each trigram (three consecutive bytes,
+ * with ASCII letters folded to lower case) maps to the ascending list of
+ * ordinals of the hunks containing it. A query is answered by intersecting the
+ * lists for its trigrams, and verifying only the surviving candidates, so its
+ * cost doesn't depend on the size of the diff.
+ *
+ * The postings grow with the size of the diff, so where heap use must not
+ * (i.e., in bounded memory mode), the index can be omitted; a query then
+ * examines every hunk
+ */
+public final class HunkIndex {
+
+  /**
+   * Build an index of the hunks of some file entries (unless buildIndex is
+   * false); the hunks must not be modified while this is in progress
+   */
+  HunkIndex(List<FileEntry> fileEntries, List<List<CompactHunk>> hunks, boolean buildIndex) {
+    mFileEntries = fileEntries;
+    mHunks = hunks;
+    mIndexed = buildIndex;
+    if (!buildIndex) {
+      for (List<CompactHunk> fileHunks : hunks)
+        mHunkCount += fileHunks.size();
+      mLineBytes = null;
+      return;
+    }
+    mFileIndexes = new int[INITIAL_CAPACITY];
+    mHunkIndexes = new int[INITIAL_CAPACITY];
+    for (int fi = 0; fi < fileEntries.size(); fi++) {
+      byte[] path = path(fileEntries.get(fi));
+      List<CompactHunk> fileHunks = hunks.get(fi);
+      for (int hi = 0; hi < fileHunks.size(); hi++) {
+        CompactHunk h = fileHunks.get(hi);
+        int ordinal = addHunk(fi, hi);
+        addTrigrams(ordinal, path, path.length);
+        for (int i = 0; i < h.lineCount(); i++) {
+          int length = h.lineLength(i);
+          if (length > mLineBytes.length)
+            mLineBytes = new byte[Math.max(length, mLineBytes.length * 2)];
+          h.copyLine(i, mLineBytes);
+          // Skip the ' ', '+' or '-' marker
+          addTrigrams(ordinal, mLineBytes, 1, length);
+        }
+      }
+    }
+    mLineBytes = null;
+  }
+
+  /**
+   * Get the number of hunks indexed
+   */
+  public int hunkCount() {
+    return mHunkCount;
+  }
+
+  /**
+   * Find the hunks whose lines or file paths contain a string (ignoring the
+   * case of ASCII letters), in the order they appear in the diff
+   */
+  public List<HunkCursor> search(String query) {
+    List<HunkCursor> result = arrayList();
+    byte[] pattern = fold(query.getBytes(StandardCharsets.UTF_8));
+    if (pattern.length == 0)
+      return result;
+
+    if (!mIndexed) {
+      for (int fi = 0; fi < mFileEntries.size(); fi++) {
+        List<CompactHunk> fileHunks = mHunks.get(fi);
+        for (int hi = 0; hi < fileHunks.size(); hi++)
+          if (contains(mFileEntries.get(fi), fileHunks.get(hi), pattern))
+            result.add(HunkCursor.newBuilder().fileIndex(fi).hunkIndex(hi).build());
+      }
+      return result;
+    }
+
+    int[] candidates = null;
+    int candidateCount = mHunkCount;
+    // Queries shorter than a trigram have to examine every hunk
+    for (int i = 0; i + 3 <= pattern.length; i++) {
+      int slot = findSlot(trigram(pattern, i));
+      if (mKeys[slot] == EMPTY_KEY)
+        return result;
+      int[] postings = mPostings[slot];
+      int postingCount = mPostingCounts[slot];
+      if (candidates == null) {
+        candidates = Arrays.copyOf(postings, postingCount);
+        candidateCount = postingCount;
+      } else
+        candidateCount = intersect(candidates, candidateCount, postings, postingCount);
+      if (candidateCount == 0)
+        return result;
+    }
+
+    for (int i = 0; i < candidateCount; i++) {
+      int ordinal = (candidates == null) ? i : candidates[i];
+      int fi = mFileIndexes[ordinal];
+      int hi = mHunkIndexes[ordinal];
+      if (contains(mFileEntries.get(fi), mHunks.get(fi).get(hi), pattern))
+        result.add(HunkCursor.newBuilder().fileIndex(fi).hunkIndex(hi).build());
+    }
+    return result;
+  }
+
+  // ------------------------------------------------------------------
+  // Building
+  // ------------------------------------------------------------------
+
+  private int addHunk(int fileIndex, int hunkIndex) {
+    if (mHunkCount == mFileIndexes.length) {
+      mFileIndexes = Arrays.copyOf(mFileIndexes, mHunkCount * 2);
+      mHunkIndexes = Arrays.copyOf(mHunkIndexes, mHunkCount * 2);
+    }
+    mFileIndexes[mHunkCount] = fileIndex;
+    mHunkIndexes[mHunkCount] = hunkIndex;
+    return mHunkCount++;
+  }
+
+  private void addTrigrams(int ordinal, byte[] bytes, int length) {
+    addTrigrams(ordinal, bytes, 0, length);
+  }
+
+  private void addTrigrams(int ordinal, byte[] bytes, int start, int end) {
+    for (int i = start; i + 3 <= end; i++) {
+      int key = trigram(bytes, i);
+      int slot = findSlot(key);
+      if (mKeys[slot] == EMPTY_KEY) {
+        mKeys[slot] = key;
+        mPostings[slot] = new int[4];
+        mTrigramCount++;
+        if (mTrigramCount * 4 > mKeys.length * 3) {
+          growTable();
+          slot = findSlot(key);
+        }
+      }
+      int count = mPostingCounts[slot];
+      int[] postings = mPostings[slot];
+      // Hunks are added in ascending order, so a duplicate can only be the last entry
+      if (count != 0 && postings[count - 1] == ordinal)
+        continue;
+      if (count == postings.length) {
+        postings = Arrays.copyOf(postings, count * 2);
+        mPostings[slot] = postings;
+      }
+      postings[count] = ordinal;
+      mPostingCounts[slot] = count + 1;
+    }
+  }
+
+  private int findSlot(int key) {
+    int mask = mKeys.length - 1;
+    int slot = (key * 0x9E3779B1) >>> (32 - mTableBits);
+    while (mKeys[slot] != EMPTY_KEY && mKeys[slot] != key)
+      slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  private void growTable() {
+    int[] keys = mKeys;
+    int[][] postings = mPostings;
+    int[] counts = mPostingCounts;
+    mTableBits++;
+    mKeys = new int[1 << mTableBits];
+    Arrays.fill(mKeys, EMPTY_KEY);
+    mPostings = new int[mKeys.length][];
+    mPostingCounts = new int[mKeys.length];
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == EMPTY_KEY)
+        continue;
+      int slot = findSlot(keys[i]);
+      mKeys[slot] = keys[i];
+      mPostings[slot] = postings[i];
+      mPostingCounts[slot] = counts[i];
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Searching
+  // ------------------------------------------------------------------
+
+  /**
+   * Replace a sorted list with its intersection with another; return its new
+   * length
+   */
+  private static int intersect(int[] target, int targetCount, int[] other, int otherCount) {
+    int count = 0;
+    int j = 0;
+    for (int i = 0; i < targetCount && j < otherCount; i++) {
+      int value = target[i];
+      while (j < otherCount && other[j] < value)
+        j++;
+      if (j < otherCount && other[j] == value)
+        target[count++] = value;
+    }
+    return count;
+  }
+
+  private static boolean contains(FileEntry fileEntry, CompactHunk hunk, byte[] pattern) {
+    if (contains(path(fileEntry), 0, pattern))
+      return true;
+    for (int i = 0; i < hunk.lineCount(); i++) {
+      byte[] line = new byte[hunk.lineLength(i)];
+      hunk.copyLine(i, line);
+      if (contains(fold(line), 1, pattern))
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean contains(byte[] text, int start, byte[] pattern) {
+    outer: for (int i = start; i + pattern.length <= text.length; i++) {
+      for (int j = 0; j < pattern.length; j++)
+        if (text[i + j] != pattern[j])
+          continue outer;
+      return true;
+    }
+    return false;
+  }
+
+  // ------------------------------------------------------------------
+
+  private static byte[] path(FileEntry fileEntry) {
+    String path = (fileEntry.state() == FileState.DELETED) ? fileEntry.origPath() : fileEntry.path();
+    return fold(path.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] fold(byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = fold(bytes[i]);
+    return bytes;
+  }
+
+  private static byte fold(byte b) {
+    if (b >= 'A' && b <= 'Z')
+      return (byte) (b + ('a' - 'A'));
+    return b;
+  }
+
+  private static int trigram(byte[] bytes, int offset) {
+    return ((fold(bytes[offset]) & 0xff) << 16) | ((fold(bytes[offset + 1]) & 0xff) << 8)
+        | (fold(bytes[offset + 2]) & 0xff);
+  }
+
+  private static final int INITIAL_CAPACITY = 256;
+  private static final int INITIAL_TABLE_BITS = 12;
+  // Trigrams occupy only the low 24 bits, so this can't be a trigram
+  private static final int EMPTY_KEY = -1;
+
+  private final List<FileEntry> mFileEntries;
+  private final List<List<CompactHunk>> mHunks;
+  private final boolean mIndexed;
+  private int mHunkCount;
+  private int[] mFileIndexes;
+  private int[] mHunkIndexes;
+  private byte[] mLineBytes = new byte[256];
+
+  // Open addressing hash table, mapping trigram => postings
+  private int mTableBits = INITIAL_TABLE_BITS;
+  private int[] mKeys = filledKeys(1 << INITIAL_TABLE_BITS);
+  private int[][] mPostings = new int[1 << INITIAL_TABLE_BITS][];
+  private int[] mPostingCounts = new int[1 << INITIAL_TABLE_BITS];
+  private int mTrigramCount;
+
+  private static int[] filledKeys(int size) {
+    int[] keys = new int[size];
+    Arrays.fill(keys, EMPTY_KEY);
+    return keys;
+  }
+}
@@ -0,0 +1,595 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import js.base.BaseObject;
+import js.file.Files;
+import js.json.JSMap;
+
+/**
+ * Persistent record of the user's decisions about hunks, keyed by hunk
+ * fingerprint (see HunkFingerprint). Stores written by earlier versions are
+ * keyed by hashes that depend upon the hunks' positions; see rekey().
+ *
+ * Each run of the program is a new 'generation'. Entries are stamped with the
+ * generation in which they were last seen; skipped flags only apply within the
+ * generation that set them, and entries that haven't been seen for a number of
+ * generations are evicted by a bounded background compaction, so startup cost
+ * doesn't depend on the size of the history.
+ *
+ * Several processes may be reviewing the same repository. Reads never block;
+ * the store file is only ever replaced (atomically) while holding a lock, and
+ * a write merges this process's changes into the file's current contents, so
+ * decisions made by other processes aren't lost.
+ *
+ * Writes can be left to a background flusher (see startFlusher()), so that
+ * recording a decision doesn't wait for the disk.
+ *
+ * The store also holds the checkpoints of reviews (see ReviewCheckpoint),
+ * which are merged like the entries for hunks (the most recent wins)
+ */
+public final class HunkStore extends BaseObject {
+
+  // Hunk status codes
+  //
+  public static final int STATUS_UNKNOWN = 0;
+  public static final int STATUS_SKIPPED = 1;
+  public static final int STATUS_ACCEPTED = 2;
+
+  public HunkStore(Files files, File file) {
+    mFiles = files;
+    mFile = file;
+  }
+
+  public static String key(long hashCode) {
+    return "" + hashCode;
+  }
+
+  /**
+   * Start a new generation; if forgetAll, discard all existing entries
+   */
+  public synchronized void startGeneration(boolean forgetAll) {
+    if (forgetAll) {
+      mMap = new JSMap();
+      mUpdates.clear();
+      mRemovals.clear();
+      mForgetAll = true;
+      mMap.put(KEY_FORMAT, FORMAT_FINGERPRINTS);
+    }
+    mGeneration = map().opt(KEY_GENERATION, 0) + 1;
+    map().put(KEY_GENERATION, mGeneration);
+    mDirty = true;
+  }
+
+  /**
+   * Get a hunk's status, and mark it as seen in the current generation
+   */
+  public synchronized int status(long hashCode) {
+    String key = key(hashCode);
+    JSMap m = map().optJSMap(key);
+    if (m == null)
+      return STATUS_UNKNOWN;
+    int status = m.getInt(ENTRY_STATUS);
+    int generation = m.opt(ENTRY_GENERATION, 0);
+    // (an entry from a later generation was written by a concurrent session)
+    if (generation < mGeneration) {
+      // Skipped flags don't survive from one generation to the next
+      if (status < STATUS_ACCEPTED) {
+        removeEntry(key, m.opt(ENTRY_GENERATION, 0));
+        return STATUS_UNKNOWN;
+      }
+      m.put(ENTRY_GENERATION, mGeneration);
+      updateEntry(key, m);
+    }
+    return status;
+  }
+
+  public synchronized long timestamp(long hashCode) {
+    JSMap m = map().optJSMap(key(hashCode));
+    if (m == null)
+      return 0;
+    return m.getLong(ENTRY_TIMESTAMP);
+  }
+
+  /**
+   * Set a hunk's status (without writing the store)
+   */
+  public synchronized void put(long hashCode, int status, String path) {
+    String key = key(hashCode);
+    if (status == STATUS_UNKNOWN)
+      removeEntry(key, Integer.MAX_VALUE);
+    else {
+      JSMap m = map().createMapIfMissing(key)//
+          .put(ENTRY_STATUS, status)//
+          .put(ENTRY_TIMESTAMP, System.currentTimeMillis())//
+          .put(ENTRY_PATH, path)//
+          .put(ENTRY_GENERATION, mGeneration)//
+      ;
+      updateEntry(key, m);
+    }
+  }
+
+  public synchronized void remove(long hashCode) {
+    removeEntry(key(hashCode), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Get the checkpoint saved by the review of a particular scope (e.g., a
+   * subtree), or null if there is none
+   */
+  public synchronized JSMap checkpoint(String scope) {
+    return map().optJSMap(KEY_CHECKPOINT_PREFIX + scope);
+  }
+
+  /**
+   * Save the checkpoint of a review (without writing the store)
+   */
+  public synchronized void putCheckpoint(String scope, JSMap checkpoint) {
+    String key = KEY_CHECKPOINT_PREFIX + scope;
+    JSMap m = checkpoint.put(ENTRY_TIMESTAMP, System.currentTimeMillis());
+    map().put(key, m);
+    updateEntry(key, m);
+  }
+
+  /**
+   * Determine if the store may contain entries keyed by the hashes used by
+   * earlier versions
+   */
+  public synchronized boolean hasLegacyKeys() {
+    return map().opt(KEY_FORMAT, 0) < FORMAT_FINGERPRINTS;
+  }
+
+  /**
+   * Move the entry for a hunk (if there is one) from its legacy hash to its
+   * fingerprint, unless there is already an entry for the fingerprint; return
+   * true if it was moved
+   */
+  public synchronized boolean rekey(long legacyHashCode, long fingerprint) {
+    String legacyKey = key(legacyHashCode);
+    String key = key(fingerprint);
+    JSMap m = map().optJSMap(legacyKey);
+    if (m == null || map().optJSMap(key) != null)
+      return false;
+    m = m.deepCopy();
+    map().put(key, m);
+    updateEntry(key, m);
+    removeEntry(legacyKey, Integer.MAX_VALUE);
+    return true;
+  }
+
+  /**
+   * Indicate that every entry has been rekeyed (or can be discarded)
+   */
+  public synchronized void setLegacyKeysMigrated() {
+    map().put(KEY_FORMAT, FORMAT_FINGERPRINTS);
+    mDirty = true;
+  }
+
+  /**
+   * Write the store, if it has changed; the file is synced to the storage
+   * device before it replaces the existing one. While holding the lock, the
+   * changes made since the last write are merged with the file's current
+   * contents (which are only re-read if another process has replaced the
+   * file).
+   *
+   * The store is only locked while copying the changes, which is proportional
+   * to their number (not to that of the entries); the merging and writing use
+   * those copies, so the store can continue to be used (by the user interface
+   * thread) while a background flusher writes it. Changes made meanwhile are
+   * included in the next write
+   */
+  public void write() {
+    synchronized (mWriteLock) {
+      Map<String, JSMap> updates = hashMap();
+      Map<String, JSMap> removals;
+      boolean forgetAll;
+      Object expectedIdentity;
+      int generation;
+      int format;
+      synchronized (this) {
+        if (!mDirty)
+          return;
+        mDirty = false;
+        if (mFiles.dryRun())
+          return;
+        // (the entries are copied, since they continue to be modified in place)
+        for (Map.Entry<String, JSMap> ent : mUpdates.entrySet())
+          updates.put(ent.getKey(), ent.getValue().deepCopy());
+        removals = new HashMap<>(mRemovals);
+        forgetAll = mForgetAll;
+        expectedIdentity = mFileIdentity;
+        generation = mGeneration;
+        format = map().opt(KEY_FORMAT, 0);
+        mUpdates.clear();
+        mRemovals.clear();
+        mForgetAll = false;
+      }
+
+      // The contents last written are modified by the merge, so they are unusable if it fails
+      JSMap content = mWritten;
+      mWritten = null;
+      try {
+        boolean merged = false;
+        Object identity;
+        mFiles.mkdirs(mFile.getParentFile());
+        File lockFile = new File(mFile.getPath() + ".lock");
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE); FileLock lock = channel.lock()) {
+          checkState(lock.isValid());
+          if (forgetAll)
+            content = new JSMap();
+          else {
+            Object diskIdentity = fileIdentity();
+            if (diskIdentity == null || !diskIdentity.equals(expectedIdentity)) {
+              log("merging with changes written by another session");
+              content = JSMap.fromFileIfExists(mFile);
+              merged = true;
+            } else if (content == null)
+              content = JSMap.fromFileIfExists(mFile);
+          }
+          content = merge(content, updates, removals, generation, format);
+          File tempFile = new File(mFile.getPath() + ".tmp");
+          mFiles.writePretty(tempFile, content);
+          try (FileChannel temp = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+            temp.force(true);
+          }
+          java.nio.file.Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+          identity = fileIdentity();
+        }
+        mWritten = content;
+
+        // (the other sessions' changes are copied before locking the store, as they are many)
+        JSMap adopted = merged ? content.deepCopy() : null;
+        synchronized (this) {
+          mFileIdentity = identity;
+          // Adopt the other sessions' changes, along with any made since the copies were taken
+          if (merged && !mForgetAll) {
+            mMap = merge(adopted, mUpdates, hashMap(), mGeneration, mMap.opt(KEY_FORMAT, 0));
+            for (String key : mRemovals.keySet())
+              mMap.remove(key);
+          }
+        }
+      } catch (IOException e) {
+        restoreUnwritten(updates, removals, forgetAll);
+        throw Files.asFileException(e);
+      } catch (RuntimeException e) {
+        restoreUnwritten(updates, removals, forgetAll);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Restore the changes that a failed write was to have saved, so they are
+   * included in the next attempt (unless they have since been superseded)
+   */
+  private synchronized void restoreUnwritten(Map<String, JSMap> updates, Map<String, JSMap> removals,
+      boolean forgetAll) {
+    for (Map.Entry<String, JSMap> ent : updates.entrySet())
+      if (!mRemovals.containsKey(ent.getKey()))
+        mUpdates.putIfAbsent(ent.getKey(), ent.getValue());
+    for (Map.Entry<String, JSMap> ent : removals.entrySet())
+      if (!mUpdates.containsKey(ent.getKey()))
+        mRemovals.putIfAbsent(ent.getKey(), ent.getValue());
+    mForgetAll |= forgetAll;
+    mDirty = true;
+  }
+
+  // ------------------------------------------------------------------
+  // Write-behind
+  // ------------------------------------------------------------------
+
+  /**
+   * Start a low priority background thread that writes the store when asked to
+   * by requestWrite(), coalescing the requests made while it is busy, and in
+   * any case at least once during each interval (if it has changed). The store
+   * is also written when the program exits, once any compaction has finished
+   */
+  public void startFlusher(long intervalMillis) {
+    synchronized (mFlushLock) {
+      if (mFlusher != null)
+        return;
+      Thread t = new Thread(() -> runFlusher(intervalMillis), "gitdiff-flusher");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      mFlusher = t;
+      mStopFlusher = false;
+      mShutdownAction = () -> {
+        finishCompaction();
+        write();
+      };
+      t.start();
+    }
+    BaseTerminal.addShutdownAction(mShutdownAction);
+  }
+
+  /**
+   * Stop the flusher (if any), waiting for it (and any compaction) to finish,
+   * and write the store one last time
+   */
+  public void stopFlusher() {
+    finishCompaction();
+    Thread t;
+    Runnable shutdownAction;
+    synchronized (mFlushLock) {
+      t = mFlusher;
+      if (t == null)
+        return;
+      shutdownAction = mShutdownAction;
+      mStopFlusher = true;
+      mFlushLock.notify();
+    }
+    // (the thread isn't interrupted, since that would close a channel it is writing to)
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
+    }
+    synchronized (mFlushLock) {
+      mFlusher = null;
+      mShutdownAction = null;
+      // (the changes it failed to write are written now, or the failure is reported)
+      mFlushFailure = null;
+    }
+    BaseTerminal.removeShutdownAction(shutdownAction);
+    write();
+  }
+
+  /**
+   * Have the store written soon, without waiting for it; if there is no
+   * flusher, it is written now. If the flusher has failed to write the store,
+   * its exception is thrown (once) to the caller
+   */
+  public void requestWrite() {
+    synchronized (mFlushLock) {
+      if (mFlushFailure != null) {
+        RuntimeException e = mFlushFailure;
+        mFlushFailure = null;
+        throw e;
+      }
+      if (mFlusher == null) {
+        write();
+        return;
+      }
+      mFlushRequested = true;
+      mFlushLock.notify();
+    }
+  }
+
+  private void runFlusher(long intervalMillis) {
+    while (true) {
+      synchronized (mFlushLock) {
+        if (!mFlushRequested && !mStopFlusher) {
+          try {
+            mFlushLock.wait(intervalMillis);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (mStopFlusher)
+          return;
+        mFlushRequested = false;
+      }
+      try {
+        write();
+      } catch (Throwable t) {
+        // Report the failure on the user interface thread; the changes are retried by the next write
+        synchronized (mFlushLock) {
+          mFlushFailure = asRuntimeException(t);
+        }
+      }
+    }
+  }
+
+  private void updateEntry(String key, JSMap entry) {
+    mRemovals.remove(key);
+    mUpdates.put(key, entry);
+    mDirty = true;
+  }
+
+  /**
+   * Remove an entry. When merging with another session's changes, the removal
+   * only applies if the other session hasn't since changed the entry's status,
+   * or seen it in a generation later than the one given
+   */
+  private void removeEntry(String key, int generation) {
+    JSMap m = map().optJSMap(key);
+    if (m == null)
+      return;
+    map().remove(key);
+    mUpdates.remove(key);
+    mRemovals.put(key, new JSMap()//
+        .put(ENTRY_TIMESTAMP, m.opt(ENTRY_TIMESTAMP, 0L))//
+        .put(ENTRY_GENERATION, generation));
+    mDirty = true;
+  }
+
+  /**
+   * Apply changes made since the last write to the contents of the file
+   */
+  private static JSMap merge(JSMap disk, Map<String, JSMap> updates, Map<String, JSMap> removals,
+      int ourGeneration, int ourFormat) {
+    for (String key : removals.keySet()) {
+      JSMap removed = removals.get(key);
+      JSMap current = disk.optJSMap(key);
+      if (current == null)
+        continue;
+      if (current.opt(ENTRY_TIMESTAMP, 0L) <= removed.opt(ENTRY_TIMESTAMP, 0L)
+          && current.opt(ENTRY_GENERATION, 0) <= removed.opt(ENTRY_GENERATION, 0))
+        disk.remove(key);
+    }
+    for (String key : updates.keySet()) {
+      JSMap ours = updates.get(key);
+      JSMap current = disk.optJSMap(key);
+      int generation = ours.opt(ENTRY_GENERATION, 0);
+      // The most recent decision wins; the entry has been seen in the later of the generations
+      if (current != null && current.opt(ENTRY_TIMESTAMP, 0L) > ours.opt(ENTRY_TIMESTAMP, 0L)) {
+        current.put(ENTRY_GENERATION, Math.max(generation, current.opt(ENTRY_GENERATION, 0)));
+        continue;
+      }
+      if (current != null)
+        generation = Math.max(generation, current.opt(ENTRY_GENERATION, 0));
+      disk.put(key, ours.deepCopy().put(ENTRY_GENERATION, generation));
+    }
+    disk.put(KEY_GENERATION, Math.max(disk.opt(KEY_GENERATION, 0), ourGeneration));
+    disk.put(KEY_FORMAT, Math.max(disk.opt(KEY_FORMAT, 0), ourFormat));
+    return disk;
+  }
+
+  /**
+   * Get a value that identifies the current version of the file; since the
+   * file is replaced rather than rewritten, this changes with every write.
+   * Returns null if the file doesn't exist, or the file system can't supply
+   * one
+   */
+  private Object fileIdentity() {
+    try {
+      BasicFileAttributes attr = java.nio.file.Files.readAttributes(mFile.toPath(),
+          BasicFileAttributes.class);
+      if (attr.fileKey() == null)
+        return null;
+      return attr.fileKey() + ":" + attr.lastModifiedTime().toMillis() + ":" + attr.size();
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Compaction
+  // ------------------------------------------------------------------
+
+  /**
+   * Start evicting stale entries on a low priority background thread. Entries
+   * are examined in small batches, so the store is never locked for long.
+   * Accepted hunks for the paths in retainedPaths are kept, since their files
+   * weren't parsed (and so their hunks weren't seen)
+   */
+  public void startCompaction(Set<String> retainedPaths) {
+    Thread t = new Thread(() -> compact(retainedPaths), "gitdiff-compaction");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    synchronized (this) {
+      checkState(mCompactor == null, "compaction already started");
+      mCompactor = t;
+    }
+    t.start();
+  }
+
+  /**
+   * Wait for the compaction (if any) to finish, so that its evictions are
+   * included in the next write
+   */
+  public void finishCompaction() {
+    Thread t;
+    synchronized (this) {
+      t = mCompactor;
+    }
+    if (t == null)
+      return;
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  private void compact(Set<String> retainedPaths) {
+    List<String> keys;
+    int oldestRetained;
+    synchronized (this) {
+      keys = new ArrayList<>(map().keySet());
+      oldestRetained = mGeneration - MAX_UNSEEN_GENERATIONS;
+    }
+    int evicted = 0;
+    for (int start = 0; start < keys.size(); start += COMPACTION_BATCH_SIZE) {
+      synchronized (this) {
+        int end = Math.min(keys.size(), start + COMPACTION_BATCH_SIZE);
+        for (int i = start; i < end; i++) {
+          String key = keys.get(i);
+          if (key.startsWith(RESERVED_KEY_PREFIX))
+            continue;
+          JSMap m = map().optJSMap(key);
+          if (m == null || m.opt(ENTRY_GENERATION, 0) >= oldestRetained)
+            continue;
+          if (retainedPaths.contains(m.opt(ENTRY_PATH, "")))
+            continue;
+          removeEntry(key, m.opt(ENTRY_GENERATION, 0));
+          evicted++;
+        }
+      }
+      Thread.yield();
+    }
+    log("compaction evicted", evicted, "of", keys.size(), "entries");
+  }
+
+  // ------------------------------------------------------------------
+
+  private JSMap map() {
+    if (mMap == null) {
+      mFileIdentity = fileIdentity();
+      mMap = JSMap.fromFileIfExists(mFile);
+    }
+    return mMap;
+  }
+
+  // Number of generations an entry can go unseen before it is evicted
+  private static final int MAX_UNSEEN_GENERATIONS = 10;
+
+  private static final int COMPACTION_BATCH_SIZE = 256;
+
+  // Keys that aren't hunk entries start with this prefix
+  private static final String RESERVED_KEY_PREFIX = "~";
+  private static final String KEY_GENERATION = RESERVED_KEY_PREFIX + "generation";
+  private static final String KEY_FORMAT = RESERVED_KEY_PREFIX + "format";
+  private static final String KEY_CHECKPOINT_PREFIX = RESERVED_KEY_PREFIX + "checkpoint:";
+
+  // Format in which entries are keyed by HunkFingerprint
+  private static final int FORMAT_FINGERPRINTS = 2;
+
+  private static final String ENTRY_STATUS = "s";
+  private static final String ENTRY_TIMESTAMP = "t";
+  private static final String ENTRY_PATH = "p";
+  private static final String ENTRY_GENERATION = "g";
+
+  private final Files mFiles;
+  private final File mFile;
+  private JSMap mMap;
+  // Contents of the file as last written by this process (used only by write()),
+  // or null if they must be read
+  private JSMap mWritten;
+  // Identity of the file when it was last read or written
+  private Object mFileIdentity;
+  // Changes made since the last write
+  private final Map<String, JSMap> mUpdates = hashMap();
+  private final Map<String, JSMap> mRemovals = hashMap();
+  private boolean mForgetAll;
+  private int mGeneration;
+  private boolean mDirty;
+  // Held while writing, so only one write is in progress
+  private final Object mWriteLock = new Object();
+  private final Object mFlushLock = new Object();
+  private Thread mFlusher;
+  private boolean mFlushRequested;
+  private boolean mStopFlusher;
+  // The flusher's most recent failure to write the store, if not yet reported
+  private RuntimeException mFlushFailure;
+  private Runnable mShutdownAction;
+  private Thread mCompactor;
+}
@@ -0,0 +1,109 @@
+package js.gitdiff;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stores lines of text as UTF-8 bytes within a single contiguous buffer, with
+ * a table of line offsets, instead of as individual String objects. Lines are
+ * only decoded to Strings when they are asked for
+ */
+public final class LineBuffer {
+
+  public LineBuffer() {
+    this(1 << 16, 1 << 10);
+  }
+
+  /**
+   * Construct a buffer with a particular initial capacity
+   */
+  public LineBuffer(int byteCapacity, int lineCapacity) {
+    mBytes = new byte[Math.max(1, byteCapacity)];
+    mOffsets = new int[Math.max(2, lineCapacity)];
+  }
+
+  /**
+   * Append a line (without its linefeed); return its index
+   */
+  public int append(byte[] source, int offset, int length) {
+    ensureByteCapacity(mByteCount + length);
+    System.arraycopy(source, offset, mBytes, mByteCount, length);
+    mByteCount += length;
+    if (mLineCount + 1 == mOffsets.length)
+      mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+    mLineCount++;
+    mOffsets[mLineCount] = mByteCount;
+    return mLineCount - 1;
+  }
+
+  public int append(String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+    return append(bytes, 0, bytes.length);
+  }
+
+  public int lineCount() {
+    return mLineCount;
+  }
+
+  /**
+   * Decode a line to a String
+   */
+  public String line(int index) {
+    int start = mOffsets[index];
+    return new String(mBytes, start, mOffsets[index + 1] - start, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the first byte of a line (e.g. a diff line's ' ', '+' or '-' marker),
+   * without decoding it; returns 0 if the line is empty
+   */
+  public byte firstByte(int index) {
+    int start = mOffsets[index];
+    if (start == mOffsets[index + 1])
+      return 0;
+    return mBytes[start];
+  }
+
+  public int lineLength(int index) {
+    return mOffsets[index + 1] - mOffsets[index];
+  }
+
+  /**
+   * Copy a line's bytes (without decoding them) to the start of an array
+   */
+  public void copyLine(int index, byte[] destination) {
+    System.arraycopy(mBytes, mOffsets[index], destination, 0, lineLength(index));
+  }
+
+  /**
+   * Determine the number of bytes of storage in use
+   */
+  public long byteCount() {
+    return mByteCount + 4L * (mLineCount + 1);
+  }
+
+  /**
+   * Discard all lines, retaining the allocated storage
+   */
+  public void clear() {
+    mByteCount = 0;
+    mLineCount = 0;
+  }
+
+  private void ensureByteCapacity(int capacity) {
+    if (capacity <= mBytes.length)
+      return;
+    long newCapacity = Math.max(capacity, mBytes.length * 2L);
+    if (newCapacity > Integer.MAX_VALUE - 8)
+      newCapacity = Integer.MAX_VALUE - 8;
+    if (newCapacity < capacity)
+      throw new OutOfMemoryError("LineBuffer capacity exceeded");
+    mBytes = Arrays.copyOf(mBytes, (int) newCapacity);
+  }
+
+  private byte[] mBytes;
+  private int mByteCount;
+  // Offset of each line's first byte; mOffsets[mLineCount] is the end of the last line
+  private int[] mOffsets;
+  private int mLineCount;
+}
@@ -0,0 +1,275 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+import gitutil.gen.FileEntry;
+import js.base.BaseObject;
+import js.file.Files;
+
+/**
+ * An on-disk cache of parsed diff results, so that files that haven't changed
+ * since the last run don't need to be diffed and parsed again.
+ *
+ * Each file is identified by its 'git diff --raw' record (modes, blob ids,
+ * status and paths) together with the size and modification time of its
+ * worktree copy. A file modified within RACY_MILLIS of the cached diff being
+ * made is never taken from the cache, since a later change might not have
+ * altered its size or modification time
+ */
+public final class ParseCache extends BaseObject {
+
+  public ParseCache(File file) {
+    mFile = file;
+  }
+
+  /**
+   * Identifies a file within the diff
+   */
+  public static final class FileKey {
+
+    FileKey(String record, List<String> paths, long size, long modifiedTime, boolean modeChanged) {
+      mPaths = paths;
+      mModifiedTime = modifiedTime;
+      mModeChanged = modeChanged;
+      mKey = record + '\0' + String.join("\0", paths) + '\0' + size + '\0' + modifiedTime;
+    }
+
+    /**
+     * Get the path of the file, as it will appear in the diff (its destination,
+     * if it was renamed or copied)
+     */
+    public String path() {
+      return last(mPaths);
+    }
+
+    /**
+     * Get the paths that must be included in a pathspec to diff this file
+     * (two, if it was renamed or copied)
+     */
+    public List<String> paths() {
+      return mPaths;
+    }
+
+    /**
+     * Determine if a file entry produced by diffing this file is for this file
+     */
+    public boolean matches(FileEntry fileEntry) {
+      String path = GitDiff.entryPath(fileEntry);
+      // (an entry whose only change is to its mode has no path)
+      if (path.isEmpty())
+        return mModeChanged;
+      return path.equals(path());
+    }
+
+    private final String mKey;
+    private final List<String> mPaths;
+    private final long mModifiedTime;
+    private final boolean mModeChanged;
+  }
+
+  /**
+   * Parse the output of 'git diff --raw -z --no-abbrev' to construct the keys
+   * of the files that differ. Records whose modes and blob ids are the same
+   * (i.e., whose stat information was stale) are omitted
+   */
+  public static List<FileKey> parseRawDiff(byte[] raw, File repoRoot) {
+    List<FileKey> keys = arrayList();
+    int cursor = 0;
+    while (cursor < raw.length) {
+      int end = indexOf(raw, (byte) 0, cursor);
+      String record = new String(raw, cursor, end - cursor, StandardCharsets.UTF_8);
+      cursor = end + 1;
+      checkState(record.startsWith(":"), "unexpected raw diff record:", quote(record));
+      // (renames and copies have a similarity score following the status letter)
+      char status = record.charAt(record.lastIndexOf(' ') + 1);
+      int pathCount = (status == 'R' || status == 'C') ? 2 : 1;
+      List<String> paths = arrayList();
+      for (int i = 0; i < pathCount; i++) {
+        end = indexOf(raw, (byte) 0, cursor);
+        paths.add(new String(raw, cursor, end - cursor, StandardCharsets.UTF_8));
+        cursor = end + 1;
+      }
+      // ':<old mode> <new mode> <old blob> <new blob> <status>'
+      List<String> fields = split(record.substring(1), ' ');
+      boolean modeChanged = !fields.get(0).equals(fields.get(1));
+      if (!modeChanged && fields.get(2).equals(fields.get(3)) && !unhashed(fields.get(3)))
+        continue;
+      File worktreeFile = new File(repoRoot, last(paths));
+      long size = -1;
+      long modifiedTime = 0;
+      if (status != 'D' && worktreeFile.exists()) {
+        size = worktreeFile.length();
+        modifiedTime = worktreeFile.lastModified();
+      }
+      keys.add(new FileKey(record, paths, size, modifiedTime, modeChanged));
+    }
+    return keys;
+  }
+
+  /**
+   * Determine if a blob id is that of a worktree file that git hasn't hashed
+   * (all zeros)
+   */
+  private static boolean unhashed(String blobId) {
+    for (int i = 0; i < blobId.length(); i++)
+      if (blobId.charAt(i) != '0')
+        return false;
+    return true;
+  }
+
+  private static int indexOf(byte[] bytes, byte value, int start) {
+    for (int i = start; i < bytes.length; i++)
+      if (bytes[i] == value)
+        return i;
+    badArg("missing terminator in raw diff");
+    return -1;
+  }
+
+  // ------------------------------------------------------------------
+  // Reading
+  // ------------------------------------------------------------------
+
+  /**
+   * Read the cache file, if it exists; if it is unreadable, or was written by
+   * a different version, it is ignored
+   */
+  public ParseCache load() {
+    mEntries = hashMap();
+    if (!mFile.exists())
+      return this;
+    long fileSize = mFile.length();
+    try (DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(mFile)))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION)
+        return this;
+      mDiffTime = input.readLong();
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = input.readUTF();
+        byte[] payload = new byte[EntryCodec.readLength(input, fileSize)];
+        input.readFully(payload);
+        mEntries.put(key, payload);
+      }
+    } catch (IOException | RuntimeException e) {
+      // (including a truncated file, or one corrupted in any other way)
+      pr("*** ignoring unreadable parse cache:", mFile, INDENT, e);
+      mEntries.clear();
+      mDiffTime = 0;
+    }
+    log("loaded", mEntries.size(), "entries from", mFile);
+    return this;
+  }
+
+  /**
+   * Determine if a file's parsed results are in the cache
+   */
+  public boolean contains(FileKey key) {
+    return key.mModifiedTime < mDiffTime - RACY_MILLIS && mEntries.containsKey(key.mKey);
+  }
+
+  /**
+   * Read a file's parsed results from the cache, storing its hunks' lines in a
+   * LineBuffer; the results are retained for the next write()
+   */
+  public void read(FileKey key, LineBuffer lines, List<FileEntry> fileEntries,
+      List<List<CompactHunk>> hunks) {
+    byte[] payload = mEntries.get(key.mKey);
+    checkState(payload != null, "no cache entry for:", key.path());
+    mNewEntries.put(key.mKey, payload);
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+      mCodec.read(input, payload.length, lines, fileEntries, hunks);
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Writing
+  // ------------------------------------------------------------------
+
+  /**
+   * Store a file's parsed results, for the next write()
+   */
+  public void put(FileKey key, FileEntry fileEntry, List<CompactHunk> fileHunks) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      mCodec.write(output, fileEntry, fileHunks);
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+    mNewEntries.put(key.mKey, bytes.toByteArray());
+    mModified = true;
+  }
+
+  /**
+   * Have the next write() also keep the loaded entries that weren't read or
+   * put (e.g., when only part of the tree was diffed)
+   */
+  public void retainUnused() {
+    for (Map.Entry<String, byte[]> ent : mEntries.entrySet())
+      mNewEntries.putIfAbsent(ent.getKey(), ent.getValue());
+  }
+
+  /**
+   * Replace the cache file with the entries that were read or put since it was
+   * loaded (if this differs from what was loaded). The diff time is when the
+   * files' worktree state was examined, before they were diffed
+   */
+  public void write(long diffTime) {
+    if (!mModified && mNewEntries.size() == mEntries.size())
+      return;
+    mFile.getParentFile().mkdirs();
+    File tempFile = null;
+    try {
+      // (a unique name, since other sessions may be writing the cache at the same time)
+      tempFile = File.createTempFile(mFile.getName(), ".tmp", mFile.getParentFile());
+      try (DataOutputStream output = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeLong(diffTime);
+        output.writeInt(mNewEntries.size());
+        for (Map.Entry<String, byte[]> ent : mNewEntries.entrySet()) {
+          output.writeUTF(ent.getKey());
+          output.writeInt(ent.getValue().length);
+          output.write(ent.getValue());
+        }
+      }
+      java.nio.file.Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      if (tempFile != null)
+        tempFile.delete();
+      throw Files.asFileException(e);
+    }
+    log("wrote", mNewEntries.size(), "entries to", mFile);
+  }
+
+  private static final int MAGIC = 0x67646663;
+  private static final int VERSION = 1;
+
+  // Modification times closer than this to the diff time aren't trusted
+  private static final long RACY_MILLIS = 2000;
+
+  private final File mFile;
+  private long mDiffTime;
+  private Map<String, byte[]> mEntries = hashMap();
+  private final Map<String, byte[]> mNewEntries = hashMap();
+  private boolean mModified;
+  private final EntryCodec mCodec = new EntryCodec();
+}
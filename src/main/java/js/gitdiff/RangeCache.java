@@ -0,0 +1,136 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+
+import gitutil.gen.FileEntry;
+import gitutil.gen.FileState;
+import js.base.BaseObject;
+import js.file.Files;
+
+/**
+ * A permanent on-disk cache of the parsed diff between two commits, which
+ * (unlike a diff against the worktree) never changes.
+ *
+ * Files that were collapsed when the diff was parsed are omitted, and their
+ * paths are recorded; the cache is only used if all of those files are still
+ * collapsed
+ */
+final class RangeCache extends BaseObject {
+
+  RangeCache(File file) {
+    mFile = file;
+  }
+
+  /**
+   * Read the cached diff, omitting any files that are now collapsed; return
+   * false if there is no usable cache. If spill is not null, each file's hunks
+   * are read into the line buffer and then spilled, so the buffer must be
+   * scratch space
+   */
+  public boolean read(Set<String> collapsedPaths, LineBuffer lines, SpillFile spill,
+      List<FileEntry> fileEntries, List<List<CompactHunk>> hunks) {
+    if (!mFile.exists())
+      return false;
+    int initialSize = fileEntries.size();
+    long fileSize = mFile.length();
+    try (DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(mFile)))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION)
+        return false;
+      int excludedCount = input.readInt();
+      for (int i = 0; i < excludedCount; i++) {
+        String path = input.readUTF();
+        if (!collapsedPaths.contains(path)) {
+          log("file is no longer collapsed:", path);
+          return false;
+        }
+      }
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        if (spill != null)
+          lines.clear();
+        mCodec.read(input, fileSize, lines, fileEntries, hunks);
+        if (collapsedPaths.contains(entryPath(last(fileEntries)))) {
+          removeLast(fileEntries);
+          removeLast(hunks);
+          continue;
+        }
+        if (spill != null) {
+          List<CompactHunk> spilled = arrayList();
+          for (CompactHunk h : last(hunks))
+            spilled.add(spill.spill(h));
+          hunks.set(hunks.size() - 1, spilled);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // (including a truncated file, or one corrupted in any other way)
+      pr("*** ignoring unreadable range cache:", mFile, INDENT, e);
+      truncate(fileEntries, initialSize);
+      truncate(hunks, initialSize);
+      return false;
+    }
+    log("read", fileEntries.size() - initialSize, "entries from", mFile);
+    return true;
+  }
+
+  /**
+   * Write the diff, noting which files were collapsed (and so weren't parsed)
+   */
+  public void write(Set<String> collapsedPaths, List<FileEntry> fileEntries,
+      List<List<CompactHunk>> hunks) {
+    mFile.getParentFile().mkdirs();
+    File tempFile = null;
+    try {
+      // (a unique name, since another session may be writing the same range)
+      tempFile = File.createTempFile(mFile.getName(), ".tmp", mFile.getParentFile());
+      try (DataOutputStream output = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(collapsedPaths.size());
+        for (String path : collapsedPaths)
+          output.writeUTF(path);
+        output.writeInt(fileEntries.size());
+        for (int i = 0; i < fileEntries.size(); i++)
+          mCodec.write(output, fileEntries.get(i), hunks.get(i));
+      }
+      java.nio.file.Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      if (tempFile != null)
+        tempFile.delete();
+      throw Files.asFileException(e);
+    }
+    log("wrote", fileEntries.size(), "entries to", mFile);
+  }
+
+  private static String entryPath(FileEntry fe) {
+    return fe.state() == FileState.DELETED ? fe.origPath() : fe.path();
+  }
+
+  private static void removeLast(List<?> list) {
+    list.remove(list.size() - 1);
+  }
+
+  private static void truncate(List<?> list, int size) {
+    list.subList(size, list.size()).clear();
+  }
+
+  private static final int MAGIC = 0x67647263;
+  private static final int VERSION = 1;
+
+  private final File mFile;
+  private final EntryCodec mCodec = new EntryCodec();
+}
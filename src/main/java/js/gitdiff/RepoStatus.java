@@ -0,0 +1,169 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import js.base.BaseObject;
+import js.file.Files;
+
+/**
+ * An immutable snapshot of a repository's branch, untracked files and
+ * unmerged files, read from a single 'git status --porcelain=v2 -z --branch'
+ */
+public final class RepoStatus extends BaseObject {
+
+  public static RepoStatus read(File repoRoot, boolean verbose) {
+    RepoStatus status = new RepoStatus();
+    status.setVerbose(verbose);
+    status.readFrom(repoRoot);
+    return status;
+  }
+
+  private RepoStatus() {
+  }
+
+  private void readFrom(File repoRoot) {
+    List<String> args = arrayList();
+    args.add("git");
+    args.add("-C");
+    args.add(repoRoot.toString());
+    args.add("status");
+    args.add("--porcelain=v2");
+    args.add("-z");
+    args.add("--branch");
+    log("running:", args);
+    try {
+      Process process = new ProcessBuilder(args).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+      try (InputStream input = new BufferedInputStream(process.getInputStream())) {
+        parse(input);
+      }
+      int exitCode = process.waitFor();
+      checkState(exitCode == 0, "git status failed; exit code:", exitCode);
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    } catch (InterruptedException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  /**
+   * Get the name of the current branch, or "(detached)"
+   */
+  public String branchName() {
+    return mBranchName;
+  }
+
+  /**
+   * Get the paths of untracked files (and directories, with a trailing '/'),
+   * relative to the repository root
+   */
+  public List<String> untrackedFiles() {
+    return mUntracked;
+  }
+
+  /**
+   * Get the paths of files with unresolved merge conflicts, relative to the
+   * repository root
+   */
+  public List<String> unmergedFiles() {
+    return mUnmerged;
+  }
+
+  private void parse(InputStream stream) throws IOException {
+    RecordReader input = new RecordReader(stream);
+    String branchName = "";
+    List<String> untracked = arrayList();
+    List<String> unmerged = arrayList();
+    String record;
+    while ((record = input.read()) != null) {
+      if (record.isEmpty())
+        continue;
+      switch (record.charAt(0)) {
+      case '#':
+        if (record.startsWith(BRANCH_HEAD))
+          branchName = record.substring(BRANCH_HEAD.length());
+        break;
+      case '?':
+        untracked.add(record.substring(2));
+        break;
+      case 'u':
+        unmerged.add(field(record, UNMERGED_PATH_FIELD));
+        break;
+      case '2':
+        // Renames and copies are followed by the original path
+        input.read();
+        break;
+      default:
+        break;
+      }
+    }
+    mBranchName = branchName;
+    mUntracked = Collections.unmodifiableList(untracked);
+    mUnmerged = Collections.unmodifiableList(unmerged);
+  }
+
+  /**
+   * Reads NUL-terminated records
+   */
+  private static final class RecordReader {
+
+    RecordReader(InputStream input) {
+      mInput = input;
+    }
+
+    /**
+     * Read bytes up to the next NUL, decoding them; return null if at the end
+     * of the input
+     */
+    String read() throws IOException {
+      int length = 0;
+      while (true) {
+        int b = mInput.read();
+        if (b < 0) {
+          if (length == 0)
+            return null;
+          break;
+        }
+        if (b == 0)
+          break;
+        if (length == mBytes.length)
+          mBytes = Arrays.copyOf(mBytes, length * 2);
+        mBytes[length++] = (byte) b;
+      }
+      return new String(mBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private final InputStream mInput;
+    private byte[] mBytes = new byte[256];
+  }
+
+  /**
+   * Get the remainder of a record following a number of space-separated
+   * fields (paths may contain spaces)
+   */
+  private static String field(String record, int index) {
+    int cursor = 0;
+    for (int i = 0; i < index; i++) {
+      cursor = record.indexOf(' ', cursor) + 1;
+      checkState(cursor > 0, "Malformed status record:", quote(record));
+    }
+    return record.substring(cursor);
+  }
+
+  private static final String BRANCH_HEAD = "# branch.head ";
+
+  // 'u <XY> <sub> <m1> <m2> <m3> <mW> <h1> <h2> <h3> <path>'
+  private static final int UNMERGED_PATH_FIELD = 10;
+
+  private String mBranchName;
+  private List<String> mUntracked;
+  private List<String> mUnmerged;
+}
@@ -0,0 +1,221 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Map;
+
+import gitutil.gen.FileEntry;
+import gitutil.gen.FileState;
+import js.base.BaseObject;
+import js.gitdiff.gen.HunkCursor;
+import js.json.JSMap;
+
+/**
+ * The progress made in reviewing a diff, so that a later session can resume
+ * without examining the hunks that were already dealt with.
+ *
+ * A file is marked as reviewed once all of its hunks have been accepted, and
+ * the cursor records the first hunk that may still need attention (every hunk
+ * before it within its file was accepted). Each is recorded by the file's
+ * path, with a stamp of the file (its paths, state, and the size and
+ * modification time of its worktree copy), and is only trusted by a later
+ * session if the diff is against the same commit and the stamp hasn't changed
+ */
+final class ReviewCheckpoint extends BaseObject {
+
+  /**
+   * Construct an (empty) checkpoint for a diff. The base identifies what the
+   * diff is against (i.e., a commit id, or range of ids); if worktree is
+   * false, the diff doesn't depend upon the worktree
+   */
+  ReviewCheckpoint(GitDiff diff, File repoRoot, String base, boolean worktree) {
+    mDiff = diff;
+    mRepoRoot = repoRoot;
+    mBase = base;
+    mWorktree = worktree;
+  }
+
+  /**
+   * Restore the progress saved by toJson(), discarding any that no longer
+   * applies; the map may be null. Files are identified by their paths, so the
+   * progress survives files being added to or removed from the diff
+   */
+  public ReviewCheckpoint restore(JSMap m) {
+    if (m == null || !mBase.equals(m.opt(KEY_BASE, "")))
+      return this;
+    Map<String, Integer> fileIndices = hashMap();
+    for (FileEntry fe : mDiff.fileEntries())
+      fileIndices.put(entryPath(fe), fileIndices.size());
+
+    int discarded = 0;
+    JSMap reviewed = m.optJSMap(KEY_REVIEWED);
+    if (reviewed != null) {
+      for (String path : reviewed.keySet()) {
+        Integer fi = fileIndices.get(path);
+        long stamp = decode(reviewed.opt(path, ""));
+        if (fi != null && stamp != 0 && stamp(fi) == stamp) {
+          mReviewed.set(fi);
+          mStamps.put(fi, stamp);
+        } else
+          discarded++;
+      }
+    }
+
+    // Resume at the cursor, unless an earlier file still needs attention
+    int firstFile = mReviewed.nextClearBit(0);
+    mCursor = HunkCursor.newBuilder().fileIndex(firstFile).build();
+    JSMap cursorMap = m.optJSMap(KEY_CURSOR);
+    if (cursorMap != null) {
+      Integer fi = fileIndices.get(cursorMap.opt(KEY_CURSOR_PATH, ""));
+      long cursorStamp = decode(cursorMap.opt(KEY_CURSOR_STAMP, ""));
+      if (fi != null && fi == firstFile && cursorStamp != 0 && stamp(fi) == cursorStamp) {
+        mCursor = HunkCursor.newBuilder().fileIndex(fi).hunkIndex(cursorMap.opt(KEY_CURSOR_HUNK, 0)).build();
+        mCursorStamp = cursorStamp;
+      }
+    }
+    log("restored checkpoint;", mReviewed.cardinality(), "files reviewed,", discarded, "discarded; cursor:",
+        mCursor.fileIndex(), mCursor.hunkIndex());
+    return this;
+  }
+
+  /**
+   * Get the hunk at which the review should start
+   */
+  public HunkCursor cursor() {
+    return mCursor;
+  }
+
+  /**
+   * Determine if all of a file's hunks are known to have been accepted
+   */
+  public boolean reviewed(int fileIndex) {
+    return mReviewed.get(fileIndex);
+  }
+
+  /**
+   * Mark a file as reviewed, now that all of its hunks have been accepted;
+   * it isn't marked if it was modified too recently to be stamped reliably
+   */
+  public void markReviewed(int fileIndex) {
+    long stamp = stamp(fileIndex);
+    if (stamp == 0 || mReviewed.get(fileIndex) && mStamps.get(fileIndex) == stamp)
+      return;
+    mReviewed.set(fileIndex);
+    mStamps.put(fileIndex, stamp);
+    mEncoded = null;
+  }
+
+  /**
+   * Unmark a file, since one of its hunks is no longer accepted
+   */
+  public void clearReviewed(int fileIndex) {
+    if (!mReviewed.get(fileIndex))
+      return;
+    mReviewed.clear(fileIndex);
+    mStamps.remove(fileIndex);
+    mEncoded = null;
+  }
+
+  /**
+   * Record the position from which a later session should resume; every
+   * earlier hunk within the file must have been accepted
+   */
+  public void setCursor(int fileIndex, int hunkIndex) {
+    if (mCursor.fileIndex() != fileIndex || mCursor.hunkIndex() != hunkIndex) {
+      mCursor = HunkCursor.newBuilder().fileIndex(fileIndex).hunkIndex(hunkIndex).build();
+      mCursorStamp = 0;
+    }
+    if (mCursorStamp == 0 && fileIndex < mDiff.fileEntries().size())
+      mCursorStamp = stamp(fileIndex);
+  }
+
+  public JSMap toJson() {
+    // The reviewed files change only as files are finished, so their map is kept
+    if (mEncoded == null) {
+      mEncoded = new JSMap();
+      for (int fi = mReviewed.nextSetBit(0); fi >= 0; fi = mReviewed.nextSetBit(fi + 1))
+        mEncoded.put(path(fi), encode(mStamps.get(fi)));
+    }
+    JSMap m = new JSMap()//
+        .put(KEY_BASE, mBase)//
+        .put(KEY_REVIEWED, mEncoded);
+    if (mCursor.fileIndex() < mDiff.fileEntries().size())
+      m.put(KEY_CURSOR, new JSMap()//
+          .put(KEY_CURSOR_PATH, path(mCursor.fileIndex()))//
+          .put(KEY_CURSOR_HUNK, mCursor.hunkIndex())//
+          .put(KEY_CURSOR_STAMP, encode(mCursorStamp)));
+    return m;
+  }
+
+  /**
+   * Calculate the stamp of a file, which changes if its hunks might have;
+   * returns zero if the file was modified too recently for a change to be
+   * reliably detected
+   */
+  private long stamp(int fileIndex) {
+    FileEntry fe = mDiff.fileEntries().get(fileIndex);
+    String path = entryPath(fe);
+    long size = -1;
+    long modifiedTime = 0;
+    if (mWorktree && fe.state() != FileState.DELETED) {
+      File file = new File(mRepoRoot, path);
+      size = file.length();
+      modifiedTime = file.lastModified();
+      // (a later change might not alter the file's size or modification time)
+      if (System.currentTimeMillis() - modifiedTime < RACY_MILLIS)
+        return 0;
+    }
+    return HunkFingerprint.hashOf(path + '\0' + fe.origPath() + '\0' + fe.state() + '\0' + fe.mode() + '\0'
+        + size + '\0' + modifiedTime);
+  }
+
+  private String path(int fileIndex) {
+    return entryPath(mDiff.fileEntries().get(fileIndex));
+  }
+
+  private static String entryPath(FileEntry fe) {
+    return fe.state() == FileState.DELETED ? fe.origPath() : fe.path();
+  }
+
+  private static String encode(long stamp) {
+    return Long.toHexString(stamp);
+  }
+
+  /**
+   * Decode a stamp written by encode(); returns zero if it is missing or
+   * malformed
+   */
+  private static long decode(String text) {
+    if (text.isEmpty())
+      return 0;
+    try {
+      return Long.parseUnsignedLong(text, 16);
+    } catch (NumberFormatException e) {
+      pr("*** ignoring malformed review checkpoint stamp:", quote(text));
+      return 0;
+    }
+  }
+
+  private static final long RACY_MILLIS = 2000;
+
+  private static final String KEY_BASE = "b";
+  private static final String KEY_REVIEWED = "f";
+  private static final String KEY_CURSOR = "p";
+  private static final String KEY_CURSOR_PATH = "f";
+  private static final String KEY_CURSOR_HUNK = "h";
+  private static final String KEY_CURSOR_STAMP = "s";
+
+  private final GitDiff mDiff;
+  private final File mRepoRoot;
+  private final String mBase;
+  private final boolean mWorktree;
+  private final BitSet mReviewed = new BitSet();
+  // Stamps of the reviewed files, by file index
+  private final Map<Integer, Long> mStamps = hashMap();
+  private HunkCursor mCursor = HunkCursor.DEFAULT_INSTANCE;
+  private long mCursorStamp;
+  // Stamps of the reviewed files, by path, or null if they have changed
+  private JSMap mEncoded;
+}
@@ -0,0 +1,83 @@
+package js.gitdiff;
+
+import java.util.List;
+
+import org.jline.terminal.Terminal;
+import org.jline.utils.AttributedString;
+import org.jline.utils.Display;
+
+/**
+ * Renders full-screen frames to the terminal, sending only those rows that
+ * differ from the previous frame (and flushing once per frame)
+ */
+public final class ScreenRenderer {
+
+  /**
+   * Render a frame, followed by an optional message, and a prompt; the cursor
+   * is left at the end of the prompt
+   */
+  public void render(String frame, String message, String prompt) {
+    StringBuilder sb = new StringBuilder(frame);
+    if (sb.length() != 0 && sb.charAt(sb.length() - 1) != '\n')
+      sb.append('\n');
+    if (message != null) {
+      sb.append(message);
+      sb.append('\n');
+    }
+    sb.append(prompt);
+
+    Terminal terminal = BaseTerminal.terminal();
+    if (BaseTerminal.isDumb()) {
+      renderPlain(sb.toString());
+      return;
+    }
+
+    int width = BaseTerminal.terminalWidth();
+    int height = BaseTerminal.terminalHeight();
+    if (mDisplay == null) {
+      mDisplay = new Display(terminal, true);
+      mSizeVersion = -1;
+    }
+    if (mSizeVersion != BaseTerminal.sizeVersion()) {
+      mSizeVersion = BaseTerminal.sizeVersion();
+      mDisplay.clear();
+      mDisplay.resize(height, width);
+    }
+
+    List<AttributedString> rows = AttributedString.fromAnsi(sb.toString()).columnSplitLength(width);
+    // If the frame is too tall, drop rows from the top, so the prompt remains visible
+    if (rows.size() > height)
+      rows = rows.subList(rows.size() - height, rows.size());
+    AttributedString lastRow = rows.get(rows.size() - 1);
+    int cursorPosition = (rows.size() - 1) * width + lastRow.columnLength();
+    mDisplay.update(rows, cursorPosition);
+  }
+
+  /**
+   * Force the next frame to be rendered in its entirety (e.g., after some other
+   * program, or other output, has changed the screen)
+   */
+  public void invalidate() {
+    if (mDisplay != null)
+      mDisplay.clear();
+  }
+
+  /**
+   * Render to a terminal that doesn't support cursor positioning
+   */
+  private void renderPlain(String text) {
+    StringBuilder sb = new StringBuilder("\n\n\n\n");
+    // Print different number linefeeds each time so user
+    // knows he's making progress
+    if (mAlternate)
+      sb.append('\n');
+    mAlternate ^= true;
+    sb.append(text);
+    System.out.print(sb.toString());
+    System.out.flush();
+  }
+
+  private Display mDisplay;
+  private int mSizeVersion;
+  private boolean mAlternate;
+}
@@ -0,0 +1,159 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import js.file.Files;
+
+/**
+ * An append-only temporary file, memory-mapped in fixed-size segments, that
+ * holds the lines of hunks outside of the heap. Only a small index for each
+ * hunk (its position, length and line count) stays on the heap; a hunk's lines
+ * are loaded when they are needed, and the most recently loaded are cached
+ */
+final class SpillFile {
+
+  SpillFile() {
+    try {
+      File file = File.createTempFile("gitdiff", ".spill");
+      file.deleteOnExit();
+      mChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      // The mapped segments remain valid after the file is unlinked (on systems that allow it)
+      file.delete();
+    } catch (IOException e) {
+      throw Files.asFileException(e);
+    }
+  }
+
+  /**
+   * Copy a hunk's lines to the file; return a hunk that refers to the copy
+   */
+  public synchronized CompactHunk spill(CompactHunk hunk) {
+    int length = 0;
+    for (int i = 0; i < hunk.lineCount(); i++)
+      length += 4 + hunk.lineLength(i);
+    if (mEncoded.length < length)
+      mEncoded = new byte[Math.max(length, mEncoded.length * 2)];
+    byte[] lineBytes = mLineBytes;
+    int cursor = 0;
+    for (int i = 0; i < hunk.lineCount(); i++) {
+      int lineLength = hunk.lineLength(i);
+      writeInt(mEncoded, cursor, lineLength);
+      cursor += 4;
+      if (lineBytes.length < lineLength)
+        lineBytes = new byte[Math.max(lineLength, lineBytes.length * 2)];
+      hunk.copyLine(i, lineBytes);
+      System.arraycopy(lineBytes, 0, mEncoded, cursor, lineLength);
+      cursor += lineLength;
+    }
+    mLineBytes = lineBytes;
+    long position = mLength;
+    transfer(position, mEncoded, 0, length, true);
+    mLength += length;
+    return new CompactHunk(hunk.header(), this, position, length, hunk.lineCount());
+  }
+
+  /**
+   * Get a LineBuffer containing a spilled hunk's lines (and no others)
+   */
+  public LineBuffer load(CompactHunk hunk) {
+    synchronized (mCache) {
+      LineBuffer buffer = mCache.get(hunk);
+      if (buffer != null)
+        return buffer;
+    }
+    byte[] encoded = new byte[hunk.spillLength()];
+    transfer(hunk.spillPosition(), encoded, 0, encoded.length, false);
+    LineBuffer buffer = new LineBuffer(encoded.length, hunk.lineCount() + 1);
+    int cursor = 0;
+    for (int i = 0; i < hunk.lineCount(); i++) {
+      int lineLength = readInt(encoded, cursor);
+      cursor += 4;
+      buffer.append(encoded, cursor, lineLength);
+      cursor += lineLength;
+    }
+    synchronized (mCache) {
+      mCache.put(hunk, buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Get the number of bytes spilled
+   */
+  public synchronized long length() {
+    return mLength;
+  }
+
+  private void transfer(long position, byte[] bytes, int offset, int length, boolean write) {
+    while (length > 0) {
+      int segmentIndex = (int) (position >>> SEGMENT_BITS);
+      int segmentOffset = (int) (position & (SEGMENT_SIZE - 1));
+      int count = Math.min(length, SEGMENT_SIZE - segmentOffset);
+      // Use a duplicate, so concurrent transfers don't disturb each other's positions
+      ByteBuffer b = segment(segmentIndex).duplicate();
+      b.position(segmentOffset);
+      if (write)
+        b.put(bytes, offset, count);
+      else
+        b.get(bytes, offset, count);
+      position += count;
+      offset += count;
+      length -= count;
+    }
+  }
+
+  private MappedByteBuffer segment(int index) {
+    synchronized (mSegments) {
+      while (mSegments.size() <= index) {
+        try {
+          mSegments.add(mChannel.map(FileChannel.MapMode.READ_WRITE, (long) mSegments.size() * SEGMENT_SIZE,
+              SEGMENT_SIZE));
+        } catch (IOException e) {
+          throw Files.asFileException(e);
+        }
+      }
+      return mSegments.get(index);
+    }
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+        | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+  }
+
+  private static final int SEGMENT_BITS = 26;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+  // Number of loaded hunks to keep on the heap
+  private static final int CACHE_SIZE = 32;
+
+  private final FileChannel mChannel;
+  private final List<MappedByteBuffer> mSegments = arrayList();
+  private long mLength;
+  private byte[] mEncoded = new byte[1 << 12];
+  private byte[] mLineBytes = new byte[256];
+  private final Map<CompactHunk, LineBuffer> mCache = new LinkedHashMap<CompactHunk, LineBuffer>(16, 0.75f,
+      true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<CompactHunk, LineBuffer> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+}
@@ -0,0 +1,150 @@
+package js.gitdiff;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import gitutil.gen.FileEntry;
+import gitutil.gen.FileState;
+import gitutil.gen.Hunk;
+import js.testutil.MyTestCase;
+
+/**
+ * Checks the number of bytes allocated by the operations performed for each
+ * keypress (or each line of a diff), since garbage collection pauses are what
+ * make the program feel sluggish. The budgets are upper bounds, with room for
+ * variation between JVMs; a failure indicates an operation has started
+ * allocating in proportion to something it shouldn't
+ */
+public class AllocationTest extends MyTestCase {
+
+  /**
+   * Only the rows within the viewport should be rendered, however large the
+   * hunk is; the hunk has hundreds of times as many rows as the viewport, so
+   * rendering even a fraction of them would exceed the budget
+   */
+  @Test
+  public void hunkDisplay() {
+    requireAllocationCounting();
+    GitDiff diff = new GitDiff(null);
+    FileEntry fileEntry = FileEntry.newBuilder().path("src/Large.java").origPath("src/Large.java")
+        .state(FileState.MODIFIED).build();
+    CompactHunk hunk = largeHunk(20000);
+    long bytes = allocatedBytesPerCall(
+        () -> diff.generateHunkDisplay(fileEntry, hunk, 0, 5000, TERMINAL_WIDTH, VIEWPORT_ROWS));
+    assertWithinBudget("generateHunkDisplay", bytes, DISPLAY_BUDGET);
+  }
+
+  @Test
+  public void hunkStatusLookup() {
+    requireAllocationCounting();
+    HunkStore store = new HunkStore(files(), new File(generatedDir(), "hunks.json"));
+    store.startGeneration(true);
+    int count = 5000;
+    for (int i = 1; i <= count; i++)
+      store.put(i * 7919L, HunkStore.STATUS_ACCEPTED, "src/File" + (i % 50) + ".java");
+    long bytes = allocatedBytesPerCall(() -> {
+      for (int i = 1; i <= count; i++)
+        store.status(i * 7919L);
+    }) / count;
+    assertWithinBudget("HunkStore.status", bytes, STATUS_LOOKUP_BUDGET);
+  }
+
+  /**
+   * Parsing shouldn't allocate objects for each line, only for each file and
+   * hunk
+   */
+  @Test
+  public void parseLine() {
+    requireAllocationCounting();
+    int lineCount = 0;
+    StringBuilder sb = new StringBuilder();
+    for (int f = 0; f < 50; f++) {
+      sb.append("diff --git a/src/F" + f + ".java b/src/F" + f + ".java\n");
+      sb.append("index 1234567..89abcde 100644\n");
+      sb.append("--- a/src/F" + f + ".java\n");
+      sb.append("+++ b/src/F" + f + ".java\n");
+      for (int h = 0; h < 2; h++) {
+        sb.append("@@ -" + (1 + h * 500) + ",150 +" + (1 + h * 500) + ",150 @@\n");
+        for (int i = 0; i < 150; i++) {
+          sb.append(i % 3 == 0 ? '-' : (i % 3 == 1 ? '+' : ' '));
+          sb.append("    int value" + i + " = computeSomething(alpha, beta, gamma);\n");
+          lineCount++;
+        }
+      }
+    }
+    byte[] diffBytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+    LineBuffer lines = new LineBuffer();
+    LineBuffer scratchLines = new LineBuffer();
+    GitDiff.Listener listener = new GitDiff.Listener() {
+      @Override
+      public boolean retainHunks() {
+        return false;
+      }
+    };
+    long bytes = allocatedBytesPerCall(() -> {
+      lines.clear();
+      new DiffParser(new ByteArrayInputStream(diffBytes)).withLineBuffers(lines, scratchLines)
+          .parse(listener);
+    }) / lineCount;
+    assertWithinBudget("DiffParser (per line)", bytes, PARSE_LINE_BUDGET);
+  }
+
+  private static void requireAllocationCounting() {
+    Assume.assumeTrue("thread allocation counting isn't supported",
+        BEAN.isThreadAllocatedMemorySupported());
+    BEAN.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  private static CompactHunk largeHunk(int lineCount) {
+    String[] lines = new String[lineCount];
+    for (int i = 0; i < lineCount; i++) {
+      char marker = i % 4 == 0 ? '-' : (i % 4 == 1 ? '+' : ' ');
+      lines[i] = marker + "\tfinal String name" + i + " = lookup(table, \"key" + i + "\", DEFAULT_VALUE);";
+    }
+    Hunk header = Hunk.newBuilder().r1Begin(100).r1Count(lineCount).r2Begin(100).r2Count(lineCount)
+        .build();
+    return TestDiffs.hunk(header, lines);
+  }
+
+  /**
+   * Determine the average number of bytes the current thread allocates per
+   * call, after warming up (so the JIT compiler and any caches have settled)
+   */
+  private static long allocatedBytesPerCall(Runnable operation) {
+    for (int i = 0; i < WARMUP_CALLS; i++)
+      operation.run();
+    long threadId = Thread.currentThread().getId();
+    long before = BEAN.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < MEASURED_CALLS; i++)
+      operation.run();
+    return (BEAN.getThreadAllocatedBytes(threadId) - before) / MEASURED_CALLS;
+  }
+
+  private void assertWithinBudget(String operation, long bytes, long budget) {
+    log(operation, "allocated", bytes, "bytes; budget", budget);
+    assertTrue(operation + " allocated " + bytes + " bytes; budget is " + budget, bytes <= budget);
+  }
+
+  private static final com.sun.management.ThreadMXBean BEAN = //
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static final int WARMUP_CALLS = 50;
+  private static final int MEASURED_CALLS = 20;
+
+  private static final int TERMINAL_WIDTH = 160;
+  private static final int VIEWPORT_ROWS = 40;
+
+  // Budgets, in bytes
+  // (rendering a row allocates a handful of strings of about the terminal's width)
+  private static final long DISPLAY_ROW_BUDGET = 3 * 1024;
+  private static final long DISPLAY_BUDGET = VIEWPORT_ROWS * DISPLAY_ROW_BUDGET;
+  private static final long STATUS_LOOKUP_BUDGET = 256;
+  private static final long PARSE_LINE_BUDGET = 64;
+}
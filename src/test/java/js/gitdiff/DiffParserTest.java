@@ -0,0 +1,235 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+import static js.gitdiff.TestDiffs.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import gitutil.gen.FileEntry;
+import gitutil.gen.FileState;
+import js.testutil.MyTestCase;
+
+public class DiffParserTest extends MyTestCase {
+
+  @Test
+  public void modified() {
+    verify(diff(//
+        "diff --git a/src/Alpha.java b/src/Alpha.java", //
+        "index 3b18e51..a2c4f1d 100644", //
+        "--- a/src/Alpha.java", //
+        "+++ b/src/Alpha.java", //
+        "@@ -3,3 +3,3 @@ public class Alpha {", //
+        "   int x;", //
+        "-  int y;", //
+        "+  long y;", //
+        "   int z;", //
+        "@@ -20 +20,2 @@", //
+        " }", //
+        "+// end"));
+  }
+
+  @Test
+  public void addedAndDeleted() {
+    verify(diff(//
+        "diff --git a/new.txt b/new.txt", //
+        "new file mode 100644", //
+        "index 0000000..e69de29", //
+        "--- /dev/null", //
+        "+++ b/new.txt", //
+        "@@ -0,0 +1,2 @@", //
+        "+hello", //
+        "+world", //
+        "diff --git a/old.txt b/old.txt", //
+        "deleted file mode 100644", //
+        "index e69de29..0000000", //
+        "--- a/old.txt", //
+        "+++ /dev/null", //
+        "@@ -1 +0,0 @@", //
+        "-goodbye"));
+  }
+
+  @Test
+  public void renameAndCopy() {
+    verify(diff(//
+        "diff --git a/before.txt b/after.txt", //
+        "similarity index 100%", //
+        "rename from before.txt", //
+        "rename to after.txt", //
+        "diff --git a/one.txt b/two.txt", //
+        "similarity index 90%", //
+        "rename from one.txt", //
+        "rename to two.txt", //
+        "index 1111111..2222222 100644", //
+        "--- a/one.txt", //
+        "+++ b/two.txt", //
+        "@@ -1,2 +1,2 @@", //
+        " first", //
+        "-second", //
+        "+2nd", //
+        "diff --git a/orig.c b/copy.c", //
+        "similarity index 95%", //
+        "copy from orig.c", //
+        "copy to copy.c", //
+        "index 3333333..4444444 100644", //
+        "--- a/orig.c", //
+        "+++ b/copy.c", //
+        "@@ -4 +4 @@", //
+        "-int a;", //
+        "+int b;"));
+  }
+
+  @Test
+  public void binaryAndModeChange() {
+    verify(diff(//
+        "diff --git a/image.png b/image.png", //
+        "index 5555555..6666666 100644", //
+        "Binary files a/image.png and b/image.png differ", //
+        "diff --git a/run.sh b/run.sh", //
+        "old mode 100644", //
+        "new mode 100755", //
+        "diff --git a/last.txt b/last.txt", //
+        "index 7777777..8888888 100644", //
+        "--- a/last.txt", //
+        "+++ b/last.txt", //
+        "@@ -1 +1 @@", //
+        "-x", //
+        "+y"));
+  }
+
+  @Test
+  public void noNewline() {
+    verify(diff(//
+        "diff --git a/a.txt b/a.txt", //
+        "index 1234567..89abcde 100644", //
+        "--- a/a.txt", //
+        "+++ b/a.txt", //
+        "@@ -1,2 +1,2 @@", //
+        " one", //
+        "-two", //
+        "\\ No newline at end of file", //
+        "+two", //
+        "diff --git a/b.txt b/b.txt", //
+        "index 1234567..89abcde 100644", //
+        "--- a/b.txt", //
+        "+++ b/b.txt", //
+        "@@ -1 +1 @@", //
+        "-alpha", //
+        "+beta", //
+        "\\ No newline at end of file"));
+  }
+
+  @Test
+  public void carriageReturnsAndMultibyte() {
+    verify(diff(//
+        "diff --git a/dos.txt b/dos.txt", //
+        "index 1234567..89abcde 100644", //
+        "--- a/dos.txt", //
+        "+++ b/dos.txt", //
+        "@@ -1 +1 @@", //
+        "-caf\u00e9\r", //
+        "+caf\u00e9 \u2603\r"));
+  }
+
+  @Test
+  public void lineLongerThanBuffer() {
+    String longLine = repeatText("abcdefgh", 20000);
+    verify(diff(//
+        "diff --git a/long.txt b/long.txt", //
+        "index 1234567..89abcde 100644", //
+        "--- a/long.txt", //
+        "+++ b/long.txt", //
+        "@@ -1 +1 @@", //
+        "-" + longLine, //
+        "+" + longLine + "!"));
+  }
+
+  @Test
+  public void quotedPaths() {
+    List<FileEntry> entries = parse(diff(//
+        "diff --git \"a/sp ace\\t\\303\\251.txt\" \"b/sp ace\\t\\303\\251.txt\"", //
+        "index 1234567..89abcde 100644", //
+        "--- \"a/sp ace\\t\\303\\251.txt\"", //
+        "+++ \"b/sp ace\\t\\303\\251.txt\"", //
+        "@@ -1 +1 @@", //
+        "-x", //
+        "+y", //
+        "diff --git a/with space.txt b/with space.txt", //
+        "index 1234567..89abcde 100644", //
+        "--- a/with space.txt\t", //
+        "+++ b/with space.txt\t", //
+        "@@ -1 +1 @@", //
+        "-x", //
+        "+y", //
+        "diff --git a/my pic.png b/my pic.png", //
+        "index 5555555..6666666 100644", //
+        "Binary files a/my pic.png and b/my pic.png differ"));
+    assertEquals(3, entries.size());
+    assertEquals("sp ace\t\u00e9.txt", entries.get(0).path());
+    assertEquals("with space.txt", entries.get(1).path());
+    assertEquals("with space.txt", entries.get(1).hunks().get(0).filename());
+    assertEquals("my pic.png", entries.get(2).origPath());
+    assertEquals("my pic.png", entries.get(2).path());
+    assertEquals(FileState.MODIFIED, entries.get(2).state());
+  }
+
+  @Test
+  public void collapsedWithoutHunks() {
+    String diffText = diff(//
+        "diff --git a/vendor/run.sh b/vendor/run.sh", //
+        "old mode 100644", //
+        "new mode 100755", //
+        "diff --git a/vendor/a.txt b/vendor/b.txt", //
+        "similarity index 100%", //
+        "rename from vendor/a.txt", //
+        "rename to vendor/b.txt", //
+        "diff --git a/vendor/my file.sh b/vendor/my file.sh", //
+        "old mode 100644", //
+        "new mode 100755", //
+        "diff --git \"a/vendor/tab\\there.sh\" \"b/vendor/tab\\there.sh\"", //
+        "old mode 100644", //
+        "new mode 100755", //
+        "diff --git a/run.sh b/run.sh", //
+        "old mode 100644", //
+        "new mode 100755");
+    Set<String> collapsed = new HashSet<>(
+        Arrays.asList("vendor/run.sh", "vendor/b.txt", "vendor/my file.sh", "vendor/tab\there.sh"));
+    List<FileEntry> entries = parse(diffText, collapsed);
+    assertEquals(1, entries.size());
+    assertEquals("100755", entries.get(0).mode());
+  }
+
+  private static List<FileEntry> parse(String diffText) {
+    return parse(diffText, null);
+  }
+
+  private static List<FileEntry> parse(String diffText, Set<String> collapsedPaths) {
+    List<FileEntry> entries = arrayList();
+    List<List<CompactHunk>> hunks = arrayList();
+    TestDiffs.parse(diffText, collapsedPaths, entries, hunks);
+    List<FileEntry> result = arrayList();
+    for (int i = 0; i < entries.size(); i++) {
+      FileEntry.Builder b = entries.get(i).toBuilder();
+      for (CompactHunk h : hunks.get(i))
+        b.hunks().add(h.toHunk());
+      result.add(b.build());
+    }
+    return result;
+  }
+
+  /**
+   * Verify that DiffParser produces the same results as the original parser
+   */
+  private static void verify(String diffText) {
+    List<FileEntry> expected = ReferenceDiffParser.parse(diffText);
+    List<FileEntry> actual = parse(diffText);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++)
+      assertEquals(expected.get(i).toJson().toString(), actual.get(i).toJson().toString());
+  }
+}
@@ -0,0 +1,115 @@
+package js.gitdiff;
+
+import static js.gitdiff.HunkClassifier.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import js.testutil.MyTestCase;
+
+public class HunkClassifierTest extends MyTestCase {
+
+  @Test
+  public void whitespace() {
+    assertEquals(CLASS_WHITESPACE, classify(" a", "-  int x=1;", "+\tint x = 1;", " b"));
+  }
+
+  @Test
+  public void blankLines() {
+    assertEquals(CLASS_WHITESPACE, classify(" a", "+", "+   ", " b"));
+  }
+
+  @Test
+  public void importReordering() {
+    assertEquals(CLASS_IMPORTS, classify("-import b.B;", "-import a.A;", "+import a.A;", "+import b.B;"));
+  }
+
+  @Test
+  public void importAdded() {
+    assertEquals(CLASS_NONE, classify("-import b.B;", "+import a.A;", "+import b.B;"));
+  }
+
+  @Test
+  public void comments() {
+    assertEquals(CLASS_COMMENTS, classify(" int x;", "-// old", "+// new", "+/* more */", " int y;"));
+  }
+
+  @Test
+  public void codeAfterBlockComment() {
+    assertEquals(CLASS_NONE, classify("-/* x */ doIt();", "+/* y */ doIt();"));
+    assertEquals(CLASS_NONE, classify(" /*", "  * old", "-*/ code();", "+*/ other();"));
+  }
+
+  @Test
+  public void uncommentingCode() {
+    assertEquals(CLASS_NONE, classify("-/*", " doIt();", " doMore();", "-*/"));
+    assertEquals(CLASS_NONE, classify("+<!--", " <p>text</p>", "+-->"));
+  }
+
+  @Test
+  public void addedBlockComment() {
+    assertEquals(CLASS_COMMENTS, classify(" int x;", "+/**", "+ * Docs", "+ */", " void f();"));
+  }
+
+  @Test
+  public void changeWithinBlockComment() {
+    assertEquals(CLASS_COMMENTS, classify(" /*", "- * old", "+ * new", " */"));
+  }
+
+  @Test
+  public void preprocessorIsNotComment() {
+    assertEquals(CLASS_NONE, classify("+#define X 1"));
+  }
+
+  @Test
+  public void codeChange() {
+    assertEquals(CLASS_NONE, classify("-int x = 1;", "+int x = 2;"));
+  }
+
+  @Test
+  public void spacesWithinQuotes() {
+    assertEquals(CLASS_NONE, classify("-String s = \"a b\";", "+String s = \"ab\";"));
+    assertEquals(CLASS_WHITESPACE, classify("-String s = \"a b\";", "+String s=\"a b\";"));
+  }
+
+  @Test
+  public void spacesBetweenTokens() {
+    assertEquals(CLASS_NONE, classify("-x = a - -b;", "+x = a --b;"));
+    assertEquals(CLASS_NONE, classify("-return x;", "+returnx;"));
+    assertEquals(CLASS_WHITESPACE, classify("-f( a, b );", "+f(a,b);"));
+  }
+
+  @Test
+  public void significantIndentation() {
+    assertEquals(CLASS_NONE, classifyFile("src/run.py", " if x:", "-    y = 1", "+y = 1"));
+    assertEquals(CLASS_NONE, classifyFile("config.yml", "-  key: 1", "+key: 1"));
+    assertEquals(CLASS_WHITESPACE, classifyFile("src/run.py", " if x:", "-    y=1", "+    y = 1"));
+  }
+
+  @Test
+  public void commentSyntaxOfFile() {
+    assertEquals(CLASS_COMMENTS, classifyFile("build.sh", "-# old", "+# new"));
+    assertEquals(CLASS_COMMENTS, classifyFile("query.sql", "--- old", "+-- new"));
+    assertEquals(CLASS_COMMENTS, classifyFile("README.md", "-<!-- old -->", "+<!-- new -->"));
+  }
+
+  @Test
+  public void notCommentsInOtherLanguages() {
+    // Markdown lists and headings
+    assertEquals(CLASS_NONE, classifyFile("README.md", "-* first item", "+* second item"));
+    assertEquals(CLASS_NONE, classifyFile("README.md", "-## Old title", "+## New title"));
+    // SQL and shell aren't commented out with '//', nor Java with '--' or '#'
+    assertEquals(CLASS_NONE, classifyFile("query.sql", "-// a", "+// b"));
+    assertEquals(CLASS_NONE, classify("-# old", "+# new"));
+    // The comment syntax of an unknown file isn't assumed
+    assertEquals(CLASS_NONE, classifyFile("notes.unknown", "-// a", "+// b"));
+  }
+
+  private static int classify(String... lines) {
+    return classifyFile("src/Example.java", lines);
+  }
+
+  private static int classifyFile(String path, String... lines) {
+    return HunkClassifier.classify(path, TestDiffs.hunk(lines));
+  }
+}
@@ -0,0 +1,58 @@
+package js.gitdiff;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import gitutil.gen.Hunk;
+import js.testutil.MyTestCase;
+
+public class HunkFingerprintTest extends MyTestCase {
+
+  @Test
+  public void independentOfPosition() {
+    assertEquals(new HunkFingerprint("a.txt").next(hunk(10, " a", "-b", "+c")),
+        new HunkFingerprint("a.txt").next(hunk(50, " a", "-b", "+c")));
+  }
+
+  @Test
+  public void dependsOnPath() {
+    assertNotEquals(new HunkFingerprint("a.txt").next(hunk(10, " a", "-b", "+c")),
+        new HunkFingerprint("b.txt").next(hunk(10, " a", "-b", "+c")));
+  }
+
+  @Test
+  public void dependsOnContext() {
+    assertNotEquals(new HunkFingerprint("a.txt").next(hunk(10, " a", "-b", "+c")),
+        new HunkFingerprint("a.txt").next(hunk(10, " x", "-b", "+c")));
+  }
+
+  @Test
+  public void contextTrailingWhitespaceIgnored() {
+    assertEquals(new HunkFingerprint("a.txt").next(hunk(10, " a", "-b", "+c")),
+        new HunkFingerprint("a.txt").next(hunk(10, " a \r", "-b", "+c")));
+  }
+
+  @Test
+  public void changedTrailingWhitespaceSignificant() {
+    assertNotEquals(new HunkFingerprint("a.txt").next(hunk(10, " a", "-b", "+c")),
+        new HunkFingerprint("a.txt").next(hunk(10, " a", "-b", "+c ")));
+  }
+
+  @Test
+  public void duplicatesDistinguished() {
+    long[] f = HunkFingerprint.of("a.txt",
+        Arrays.asList(hunk(10, "-x", "+y"), hunk(20, "-x", "+y"), hunk(30, "-z")));
+    assertNotEquals(f[0], f[1]);
+    // A line added above both duplicates doesn't change either's identity
+    long[] g = HunkFingerprint.of("a.txt",
+        Arrays.asList(hunk(11, "-x", "+y"), hunk(21, "-x", "+y"), hunk(31, "-z")));
+    assertArrayEquals(f, g);
+  }
+
+  private static CompactHunk hunk(int begin, String... lines) {
+    return TestDiffs.hunk(Hunk.newBuilder().r1Begin(begin).r2Begin(begin).build(), lines);
+  }
+}
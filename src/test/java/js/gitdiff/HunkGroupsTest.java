@@ -0,0 +1,61 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+import static js.gitdiff.TestDiffs.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import js.testutil.MyTestCase;
+
+public class HunkGroupsTest extends MyTestCase {
+
+  @Test
+  public void contextIsIgnored() {
+    HunkGroups groups = new HunkGroups(files(//
+        file(hunk(" package a;", "-// Copyright 2023", "+// Copyright 2024")),
+        file(hunk(" package b;", "-// Copyright 2023", "+// Copyright 2024", " import c.C;"))));
+    int group = groups.group(0, 0);
+    assertNotEquals(HunkGroups.NONE, group);
+    assertEquals(group, groups.group(1, 0));
+    assertEquals(2, HunkGroups.fileCount(groups.members(group)));
+  }
+
+  @Test
+  public void differentChanges() {
+    HunkGroups groups = new HunkGroups(files(//
+        file(hunk("-int x = 1;", "+int x = 2;")), //
+        file(hunk("-int x = 1;", "+int x = 3;"))));
+    assertEquals(HunkGroups.NONE, groups.group(0, 0));
+    assertEquals(HunkGroups.NONE, groups.group(1, 0));
+    assertEquals(0, groups.groupCount());
+  }
+
+  @Test
+  public void withinOneFile() {
+    HunkGroups groups = new HunkGroups(files(//
+        file(hunk("-foo();", "+bar();"), hunk("-x = 1;", "+x = 2;"), hunk(" a", "-foo();", "+bar();"))));
+    int group = groups.group(0, 0);
+    assertEquals(group, groups.group(0, 2));
+    assertEquals(HunkGroups.NONE, groups.group(0, 1));
+    assertEquals(2, groups.members(group).size());
+    assertEquals(1, HunkGroups.fileCount(groups.members(group)));
+  }
+
+  @Test
+  public void addedDiffersFromRemoved() {
+    // The same line added in one file and removed in the other isn't the same change
+    HunkGroups groups = new HunkGroups(files(file(hunk("+foo();")), file(hunk("-foo();"))));
+    assertEquals(HunkGroups.NONE, groups.group(0, 0));
+  }
+
+  @SafeVarargs
+  private static List<List<CompactHunk>> files(List<CompactHunk>... files) {
+    List<List<CompactHunk>> result = arrayList();
+    for (List<CompactHunk> f : files)
+      result.add(f);
+    return result;
+  }
+}
@@ -0,0 +1,92 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import gitutil.gen.FileEntry;
+import js.gitdiff.gen.HunkCursor;
+import js.testutil.MyTestCase;
+
+public class HunkIndexTest extends MyTestCase {
+
+  @Test
+  public void matchesLinesAndPaths() {
+    HunkIndex index = index();
+    assertEquals(3, index.hunkCount());
+    assertEquals("[0:1]", found(index, "FooService"));
+    assertEquals("[0:0, 0:1]", found(index, "alpha.java"));
+    assertEquals("[1:0]", found(index, "readme"));
+  }
+
+  @Test
+  public void ignoresCase() {
+    assertEquals("[0:1]", found(index(), "fooservice"));
+  }
+
+  @Test
+  public void shortQueries() {
+    assertEquals("[0:0, 1:0]", found(index(), "x"));
+  }
+
+  @Test
+  public void partialTrigramMatch() {
+    // Some of the trigrams of 'integer' occur in the first hunk, but not all
+    assertEquals("[]", found(index(), "integer"));
+  }
+
+  @Test
+  public void noMatch() {
+    assertEquals("[]", found(index(), "nowhere"));
+  }
+
+  @Test
+  public void withoutIndex() {
+    HunkIndex index = index(false);
+    assertEquals(3, index.hunkCount());
+    assertEquals("[0:1]", found(index, "fooservice"));
+    assertEquals("[0:0, 0:1]", found(index, "alpha.java"));
+    assertEquals("[0:0, 1:0]", found(index, "x"));
+    assertEquals("[]", found(index, "integer"));
+  }
+
+  private static String found(HunkIndex index, String query) {
+    List<String> result = arrayList();
+    for (HunkCursor c : index.search(query))
+      result.add(c.fileIndex() + ":" + c.hunkIndex());
+    return result.toString();
+  }
+
+  private static HunkIndex index() {
+    return index(true);
+  }
+
+  private static HunkIndex index(boolean buildIndex) {
+    String diffText = TestDiffs.diff(//
+        "diff --git a/src/Alpha.java b/src/Alpha.java", //
+        "index 3b18e51..a2c4f1d 100644", //
+        "--- a/src/Alpha.java", //
+        "+++ b/src/Alpha.java", //
+        "@@ -3,2 +3,2 @@", //
+        "   int x;", //
+        "-  long ger;", //
+        "+  long y;", //
+        "@@ -20 +20,2 @@", //
+        " }", //
+        "+// see FooService", //
+        "diff --git a/README b/README", //
+        "index 1234567..89abcde 100644", //
+        "--- a/README", //
+        "+++ b/README", //
+        "@@ -1 +1 @@", //
+        "-x", //
+        "+y");
+    List<FileEntry> entries = arrayList();
+    List<List<CompactHunk>> hunks = arrayList();
+    TestDiffs.parse(diffText, null, entries, hunks);
+    return new HunkIndex(entries, hunks, buildIndex);
+  }
+}
@@ -0,0 +1,230 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.util.List;
+
+import gitutil.gen.FileEntry;
+import gitutil.gen.FileState;
+import gitutil.gen.Hunk;
+import js.parsing.StringParser;
+
+/**
+ * The original String-based diff parser, retained to validate DiffParser
+ */
+final class ReferenceDiffParser {
+
+  public static List<FileEntry> parse(String content) {
+    return new ReferenceDiffParser().parseGitDiff(content);
+  }
+
+  private List<String> mLines;
+  private int mCursor;
+
+  private String peek() {
+    if (mCursor == mLines.size())
+      return null;
+    return mLines.get(mCursor);
+  }
+
+  private String readLine() {
+    String line = peek();
+    checkState(line != null, "Unexpected end of file");
+    mCursor++;
+    return line;
+  }
+
+  private List<FileEntry> parseGitDiff(String content) {
+    List<FileEntry> fileEntries = arrayList();
+    content = chomp(content);
+    if (content.isEmpty())
+      return fileEntries;
+    mCursor = 0;
+    mLines = split(content, '\n');
+    while (peek() != null) {
+      readGitDiffHeader();
+      FileEntry.Builder fileEntry = FileEntry.newBuilder();
+      readExtendedHeader(fileEntry);
+      if (peek() == null || peek().startsWith("diff --git")) {
+      } else if (peek().startsWith("Binary")) {
+        processBinaryFile(fileEntry);
+      } else {
+        readUnifiedHeader(fileEntry);
+        readHunks(fileEntry);
+      }
+      fileEntries.add(fileEntry.build());
+    }
+    return fileEntries;
+  }
+
+  private StringParser readIntoParser() {
+    return new StringParser(readLine());
+  }
+
+  private void readGitDiffHeader() {
+    StringParser p = readIntoParser();
+    p.read("diff --git");
+  }
+
+  private void readExtendedHeader(FileEntry.Builder fileEntry) {
+    fileEntry.state(FileState.MODIFIED);
+    boolean readLine = false;
+    while (true) {
+      if (readLine)
+        readLine();
+      readLine = true;
+      String line = peek();
+      if (line == null)
+        break;
+      StringParser p = new StringParser(line);
+      if (p.readIf("index")) {
+        continue;
+      }
+      if (p.readIf("similarity index ")) {
+        p.readRemaining();
+        continue;
+      }
+      if (p.readIf("old mode ")) {
+        fileEntry.oldMode(p.readRemaining());
+        continue;
+      }
+      if (p.readIf("new mode ")) {
+        fileEntry.mode(p.readRemaining());
+        continue;
+      }
+      if (p.readIf("deleted file mode ")) {
+        fileEntry.mode(p.readRemaining());
+        fileEntry.state(FileState.DELETED);
+        continue;
+      }
+      if (p.readIf("new file mode ")) {
+        fileEntry.mode(p.readRemaining());
+        fileEntry.state(FileState.ADDED);
+        continue;
+      }
+      if (p.readIf("copy from ")) {
+        fileEntry.origPath(p.readPath());
+        continue;
+      }
+      if (p.readIf("copy to ")) {
+        fileEntry.path(p.readPath());
+        continue;
+      }
+      if (p.readIf("rename from ")) {
+        fileEntry.state(FileState.RENAMED);
+        fileEntry.origPath(p.readPath());
+        continue;
+      }
+      if (p.readIf("rename to ")) {
+        fileEntry.state(FileState.RENAMED);
+        fileEntry.path(p.readPath());
+        continue;
+      }
+      break;
+    }
+  }
+
+  private void readUnifiedHeader(FileEntry.Builder fileEntry) {
+    StringParser p;
+    String pathA, pathB;
+
+    p = readIntoParser();
+    p.read("--- ");
+    pathA = p.readPath();
+    p.assertDone();
+
+    p = readIntoParser();
+    p.read("+++ ");
+    pathB = p.readPath();
+    p.assertDone();
+
+    setPaths(fileEntry, pathA, pathB);
+  }
+
+  private void processBinaryFile(FileEntry.Builder fileEntry) {
+    StringParser p;
+    String pathA, pathB;
+
+    p = readIntoParser();
+    p.read("Binary files ");
+    pathA = p.readPath();
+    p.read(" and ");
+    pathB = p.readPath();
+    p.read(" differ");
+    p.assertDone();
+
+    setPaths(fileEntry, pathA, pathB);
+  }
+
+  private void setPaths(FileEntry.Builder fileEntry, String pathA, String pathB) {
+    if (fileEntry.state() != FileState.ADDED) {
+      checkArgument(pathA.startsWith("a/"));
+      fileEntry.origPath(pathA.substring(2));
+    }
+    if (fileEntry.state() != FileState.DELETED) {
+      checkArgument(pathB.startsWith("b/"));
+      fileEntry.path(pathB.substring(2));
+    }
+  }
+
+  private void readHunks(FileEntry.Builder fileEntry) {
+    while (true) {
+      String x = peek();
+      if (x == null || !x.startsWith("@@"))
+        break;
+      StringParser p = readIntoParser();
+
+      Hunk.Builder h = Hunk.newBuilder();
+      h.filename(fileEntry.path());
+
+      p.read("@@ -");
+      h.r1Begin(p.readInteger() - 1);
+      h.r1Count(1);
+      if (p.readIf(","))
+        h.r1Count(p.readInteger());
+      p.read(" +");
+      h.r2Begin(p.readInteger() - 1);
+      h.r2Count(1);
+      if (p.readIf(","))
+        h.r2Count(p.readInteger());
+      p.read(" @@");
+
+      int sourceIndex = 0;
+      while (true) {
+        x = peek();
+        if (nullOrEmpty(x))
+          break;
+        char c = x.charAt(0);
+        if (" +-\\".indexOf(c) < 0) {
+          break;
+        }
+        if (c == '-') {
+          sourceIndex = 1;
+        } else if (c == '+') {
+          sourceIndex = 2;
+        } else if (c == '\\') {
+          if (!x.equals("\\ No newline at end of file"))
+            badArg("Unknown message:", quote(x));
+          switch (sourceIndex) {
+          default:
+            badState("No newline, but no file to attach it to");
+            break;
+          case 1:
+            h.missingNewline1(true);
+            break;
+          case 2:
+            h.missingNewline2(true);
+            break;
+          }
+          readLine();
+          continue;
+        }
+        h.lines().add(x);
+        readLine();
+      }
+      fileEntry.hunks().add(h.build());
+    }
+    checkState(!fileEntry.hunks().isEmpty(), "missing hunks");
+  }
+
+}
@@ -0,0 +1,66 @@
+package js.gitdiff;
+
+import static js.base.Tools.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import gitutil.gen.FileEntry;
+import gitutil.gen.Hunk;
+
+/**
+ * Builds the hunks and parsed diffs that the tests examine
+ */
+final class TestDiffs {
+
+  /**
+   * Build a hunk from its lines (each starting with its marker)
+   */
+  static CompactHunk hunk(String... lines) {
+    return hunk(Hunk.DEFAULT_INSTANCE, lines);
+  }
+
+  /**
+   * Build a hunk with a particular header from its lines
+   */
+  static CompactHunk hunk(Hunk header, String... lines) {
+    LineBuffer buffer = new LineBuffer();
+    for (String line : lines)
+      buffer.append(line);
+    return new CompactHunk(header, buffer, 0, lines.length);
+  }
+
+  /**
+   * Build the list of a file's hunks
+   */
+  static List<CompactHunk> file(CompactHunk... hunks) {
+    List<CompactHunk> result = arrayList();
+    for (CompactHunk h : hunks)
+      result.add(h);
+    return result;
+  }
+
+  /**
+   * Join the lines of a diff
+   */
+  static String diff(String... lines) {
+    return String.join("\n", lines) + "\n";
+  }
+
+  /**
+   * Parse a diff, adding each file entry and its hunks to the lists given
+   */
+  static void parse(String diffText, Set<String> collapsedPaths, List<FileEntry> entries,
+      List<List<CompactHunk>> hunks) {
+    new DiffParser(new ByteArrayInputStream(diffText.getBytes(StandardCharsets.UTF_8)))
+        .withCollapsedPaths(collapsedPaths).parse(new GitDiff.Listener() {
+          @Override
+          public void fileEntry(FileEntry fileEntry, List<CompactHunk> fileHunks) {
+            entries.add(fileEntry);
+            hunks.add(fileHunks);
+          }
+        });
+  }
+}